@@ -9,6 +9,7 @@ import org.cbase.blinkendroid.Constants;
 import org.cbase.blinkendroid.network.BlinkendroidClient;
 import org.cbase.blinkendroid.network.BlinkendroidListener;
 import org.cbase.blinkendroid.network.ConnectionListener;
+import org.cbase.blinkendroid.player.FrameStore;
 import org.cbase.blinkendroid.player.bml.BLM;
 import org.cbase.blinkendroid.server.BlinkendroidServer;
 
@@ -60,6 +61,11 @@ public class ClientConnectionTest extends TestCase {
 	    this.endY = endY;
 	}
 
+	public void seek(long startTime) {
+	    System.out.println(x + ":" + y + " seek " + startTime);
+	    this.startTime = startTime;
+	}
+
 	public void connectionClosed(InetAddress addr) {
 	    System.out.println(x + ":" + y + "connectionClosed");
 	    connectionClosed = true;
@@ -81,11 +87,23 @@ public class ClientConnectionTest extends TestCase {
 	    System.out.println(x + ":" + y + " play ");
 	}
 
+	public void play(int x, int y, long startTime, FrameStore frames) {
+	    this.x = x;
+	    this.y = y;
+	    this.startTime = startTime;
+	    System.out.println(x + ":" + y + " play frames");
+	}
+
 	public void serverTime(long serverTime) {
 	    // System.out.println(x+":"+y+" serverTime "+serverTime);
 	    this.serverTime = serverTime;
 	}
 
+	public void clockOffset(long offset, long uncertainty) {
+	    System.out.println(x + ":" + y + " clockOffset " + offset + " +/- "
+		    + uncertainty);
+	}
+
     }
 
     // public void testReusePosition() throws Exception{
@@ -38,7 +38,7 @@ public class AnimatedGifConverter {
 			BufferedImage image = decoder.getFrame(i);
 			BLM.Frame f = new BLM.Frame();
 			f.duration = decoder.getDelay(i);
-			f.matrix = new byte[blm.header.height][blm.header.width];
+			f.pixels = new byte[blm.header.height * blm.header.width];
 			System.out.printf("Image dimensions are height: %d; width: %d \n",
 					image.getHeight(), image.getWidth());
 			blm.frames.add(f);
@@ -47,20 +47,17 @@ public class AnimatedGifConverter {
 					int[] rgb = new int[4];
 					image.getRaster().getPixel(x, y, rgb);
 
-					byte b = (byte) ((byte) ((rgb[0] / 32) << 5)
-							+ (byte) ((rgb[1] / 32) << 2) + (byte) ((rgb[2] / 64)));
-					f.matrix[y][x] = b;
+					byte b = BLMPalette.quantize(blm.header, rgb[0], rgb[1],
+							rgb[2]);
+					f.pixels[y * blm.header.width + x] = b;
 				}
 			}
 		}
-		ObjectOutput out = new ObjectOutputStream(new FileOutputStream(
+		BLMWriter.write(blm,
 				"/Users/ben/workspace/private/blinkendroid/blinkendroid-utils/nyan/bbm/"
-						+ name + ".bbm"));
-		out.writeObject(blm);
-		out.flush();
-		out.close();
+						+ name + ".bbm");
 		// die infofiles fr
-		out = new ObjectOutputStream(new FileOutputStream(
+		ObjectOutput out = new ObjectOutputStream(new FileOutputStream(
 				"/Users/ben/workspace/private/blinkendroid/blinkendroid-utils/nyan/bbmz/"
 						+ name + ".info"));
 		out.writeObject(blm.header);
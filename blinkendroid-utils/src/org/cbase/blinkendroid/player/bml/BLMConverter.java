@@ -64,10 +64,7 @@ public class BLMConverter {
 	if(null==blm.header.title)
 	    blm.header.title="orig"+blmfile.substring(4,blmfile.length()-4);
 	// write blm to binary blinkelights movie bbm
-	ObjectOutput out = new ObjectOutputStream(new FileOutputStream(bbmfile));
-	out.writeObject(blm);
-	out.flush();
-	out.close();
+	BLMWriter.write(blm, bbmfile);
 	return blm;
     }
 
@@ -60,10 +60,7 @@ public class BMLConverter {
 	if(null==blm.header.title)
 	    blm.header.title=bmlfile.substring(4,bmlfile.length()-4);
 	// write blm to binary blinkelights movie bbm
-	ObjectOutput out = new ObjectOutputStream(new FileOutputStream(bbmfile));
-	out.writeObject(blm);
-	out.flush();
-	out.close();
+	BLMWriter.write(blm, bbmfile);
 	return blm;
     }
 
@@ -25,13 +25,9 @@ public class BMPConverter {
 		blm.frames = new ArrayList<Frame>();
 		addFrames(name,blm,192,100,true,false);
 //		addFrames(name,blm,73,150,false,true);
-		ObjectOutput out = new ObjectOutputStream(new FileOutputStream(
-				"gdd/bbm/" + name + ".bbm"));
-		out.writeObject(blm);
-		out.flush();
-		out.close();
+		BLMWriter.write(blm, "gdd/bbm/" + name + ".bbm");
 		// die infofiles fr
-		out = new ObjectOutputStream(new FileOutputStream("gdd/bbmz/" + name
+		ObjectOutput out = new ObjectOutputStream(new FileOutputStream("gdd/bbmz/" + name
 				+ ".info"));
 		out.writeObject(blm.header);
 		out.flush();
@@ -61,16 +57,16 @@ public class BMPConverter {
 			System.out.println(i);
 			BLM.Frame f = new BLM.Frame();
 			f.duration = duration;
-			f.matrix = new byte[image.getHeight()][image.getWidth()];
+			f.pixels = new byte[image.getHeight() * image.getWidth()];
 			blm.frames.add(f);
 			for (int y = 0; y < image.getHeight(); y++) {
 				for (int x = 0; x < image.getWidth(); x++) {
 					int[] rgb = new int[3];
 					image.getRaster().getPixel(x, y, rgb);
 
-					byte b = (byte) ((byte) ((rgb[0] / 32) << 5)
-							+ (byte) ((rgb[1] / 32) << 2) + (byte) ((rgb[2] / 64)));
-					f.matrix[y][x] = b;
+					byte b = BLMPalette.quantize(blm.header, rgb[0], rgb[1],
+							rgb[2]);
+					f.pixels[y * image.getWidth() + x] = b;
 				}
 			}
 
@@ -32,26 +32,22 @@ public class Bavarian {
 		for (int i = 1; i < decoder.getFrameCount(); i++) {
 			BLM.Frame f = new BLM.Frame();
 			f.duration = 200;
-			f.matrix = new byte[blm.header.height][blm.header.width];
+			f.pixels = new byte[blm.header.height * blm.header.width];
 			blm.frames.add(f);
 			for (int y = 0; y < blm.header.height; y++) {
 
 				for (int x = 0; x < blm.header.width; x++) {
 					if ((x + y + i) % 2 == 0)
-						f.matrix[y][x] = (byte) 255;
+						f.pixels[y * blm.header.width + x] = (byte) 255;
 					else
-						f.matrix[y][x] = (byte) 3;
+						f.pixels[y * blm.header.width + x] = (byte) 3;
 
 				}
 
 			}
-			ObjectOutput out = new ObjectOutputStream(new FileOutputStream(
-					"gdd/bbm/" + name + ".bbm"));
-			out.writeObject(blm);
-			out.flush();
-			out.close();
+			BLMWriter.write(blm, "gdd/bbm/" + name + ".bbm");
 			// die infofiles fr
-			out = new ObjectOutputStream(new FileOutputStream("gdd/bbmz/"
+			ObjectOutput out = new ObjectOutputStream(new FileOutputStream("gdd/bbmz/"
 					+ name + ".info"));
 			out.writeObject(blm.header);
 			out.flush();
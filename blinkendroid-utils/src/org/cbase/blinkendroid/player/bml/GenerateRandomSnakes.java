@@ -26,7 +26,7 @@ public class GenerateRandomSnakes {
 			for (int i = 1; i < r * r; i++) {
 				BLM.Frame f = new BLM.Frame();
 				f.duration = 200;
-				f.matrix = new byte[blm.header.height][blm.header.width];
+				f.pixels = new byte[blm.header.height * blm.header.width];
 				blm.frames.add(f);
 				for (int y = 0; y < blm.header.height; y++) {
 					if (y % 2 == 0)
@@ -34,32 +34,28 @@ public class GenerateRandomSnakes {
 							int endY = i / r;
 							int endX = i % r;
 							if (y < endY)
-								f.matrix[y][x] = (byte) 0;
+								f.pixels[y * blm.header.width + x] = (byte) 0;
 							else if (y == endY && x < endX)
-								f.matrix[y][x] = (byte) 0;
+								f.pixels[y * blm.header.width + x] = (byte) 0;
 							else
-								f.matrix[y][x] = (byte) 255;
+								f.pixels[y * blm.header.width + x] = (byte) 255;
 						}
 					else
 						for (int x = blm.header.width-1; x >= 0; x--) {
 							int endY = i / r;
 							int endX = r-(i % r);
 							if (y < endY)
-								f.matrix[y][x] = (byte) 0;
+								f.pixels[y * blm.header.width + x] = (byte) 0;
 							else if (y == endY && x > endX)
-								f.matrix[y][x] = (byte) 0;
+								f.pixels[y * blm.header.width + x] = (byte) 0;
 							else
-								f.matrix[y][x] = (byte) 255;
+								f.pixels[y * blm.header.width + x] = (byte) 255;
 						}
 				}
 			}
-			ObjectOutput out = new ObjectOutputStream(new FileOutputStream(
-					"gdd/bbm/" + name + ".bbm"));
-			out.writeObject(blm);
-			out.flush();
-			out.close();
+			BLMWriter.write(blm, "gdd/bbm/" + name + ".bbm");
 			// die infofiles fr
-			out = new ObjectOutputStream(new FileOutputStream("gdd/bbmz/"
+			ObjectOutput out = new ObjectOutputStream(new FileOutputStream("gdd/bbmz/"
 					+ name + ".info"));
 			out.writeObject(blm.header);
 			out.flush();
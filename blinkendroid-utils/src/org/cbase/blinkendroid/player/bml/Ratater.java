@@ -31,7 +31,7 @@ public class Ratater {
 			System.out.println(i+" w:"+orig.getWidth()+" h:"+orig.getHeight());
 			f = new BLM.Frame();
 			f.duration = 100;
-			f.matrix = new byte[blm.header.height][blm.header.width];
+			f.pixels = new byte[blm.header.height * blm.header.width];
 			blm.frames.add(f);
 			for (int y = 0; y < blm.header.height; y++) {
 				for (int x = 0; x < blm.header.width; x++) {
@@ -47,20 +47,16 @@ public class Ratater {
 					}catch(Exception e){
 						rgb= new int[]{255,255,255,255};
 					}
-					byte b = (byte) ((byte) ((rgb[0] / 32) << 5)
-							+ (byte) ((rgb[1] / 32) << 2) + (byte) ((rgb[2] / 64)));
-					f.matrix[y][x] = b;
+					byte b = BLMPalette.quantize(blm.header, rgb[0], rgb[1],
+							rgb[2]);
+					f.pixels[y * blm.header.width + x] = b;
 				}
 			}
 			j=i;
 		}
-		ObjectOutput out = new ObjectOutputStream(new FileOutputStream(
-				"mwc/bbm/" + name + ".bbm"));
-		out.writeObject(blm);
-		out.flush();
-		out.close();
+		BLMWriter.write(blm, "mwc/bbm/" + name + ".bbm");
 		// die infofiles fr
-		out = new ObjectOutputStream(new FileOutputStream("mwc/bbmz/" + name
+		ObjectOutput out = new ObjectOutputStream(new FileOutputStream("mwc/bbmz/" + name
 				+ ".info"));
 		out.writeObject(blm.header);
 		out.flush();
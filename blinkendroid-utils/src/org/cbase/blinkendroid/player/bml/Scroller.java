@@ -31,16 +31,16 @@ public class Scroller {
 			System.out.println(i+" w:"+orig.getWidth()+" h:"+orig.getHeight());
 			f = new BLM.Frame();
 			f.duration = 200;
-			f.matrix = new byte[blm.header.height][blm.header.width];
+			f.pixels = new byte[blm.header.height * blm.header.width];
 			blm.frames.add(f);
 			for (int y = 0; y < blm.header.height; y++) {
 				for (int x = 0; x < blm.header.width; x++) {
 					int[] rgb = new int[3];
 					orig.getRaster().getPixel(x, y+i, rgb);
 
-					byte b = (byte) ((byte) ((rgb[0] / 32) << 5)
-							+ (byte) ((rgb[1] / 32) << 2) + (byte) ((rgb[2] / 64)));
-					f.matrix[y][x] = b;
+					byte b = BLMPalette.quantize(blm.header, rgb[0], rgb[1],
+							rgb[2]);
+					f.pixels[y * blm.header.width + x] = b;
 				}
 			}
 			j=i;
@@ -50,7 +50,7 @@ public class Scroller {
 //			System.out.println(i+" w:"+orig.getWidth()+" h:"+orig.getHeight());
 //			BLM.Frame f = new BLM.Frame();
 //			f.duration = 100;
-//			f.matrix = new byte[blm.header.height][blm.header.width];
+//			f.pixels = new byte[blm.header.height * blm.header.width];
 //			blm.frames.add(f);
 //			for (int y = 0; y < blm.header.height; y++) {
 //				for (int x = 0; x < blm.header.width; x++) {
@@ -59,17 +59,13 @@ public class Scroller {
 //
 //					byte b = (byte) ((byte) ((rgb[0] / 32) << 5)
 //							+ (byte) ((rgb[1] / 32) << 2) + (byte) ((rgb[2] / 64)));
-//					f.matrix[y][x] = b;
+//					f.pixels[y * blm.header.width + x] = b;
 //				}
 //			}
 //		}
-		ObjectOutput out = new ObjectOutputStream(new FileOutputStream(
-				"mwc/bbm/" + name + ".bbm"));
-		out.writeObject(blm);
-		out.flush();
-		out.close();
+		BLMWriter.write(blm, "mwc/bbm/" + name + ".bbm");
 		// die infofiles fr
-		out = new ObjectOutputStream(new FileOutputStream("mwc/bbmz/" + name
+		ObjectOutput out = new ObjectOutputStream(new FileOutputStream("mwc/bbmz/" + name
 				+ ".info"));
 		out.writeObject(blm.header);
 		out.flush();
@@ -27,11 +27,30 @@ public final class Constants {
     public static final int BROADCAST_SERVER_PORT = 6790;
     public static final int BROADCAST_IDLE_THRESHOLD = 5000;
     public static final String MULTICAST_GROUP = "230.0.0.1";
+    public static final int TIME_BEACON_PORT = 6791;
+    public static final boolean TIME_BEACON_MULTICAST = false;
     public static final String SERVER_BROADCAST_COMMAND = "BLINKENDROID_SERVER";
     public static final int SERVER_PORT = 9876;
     public static final int SERVER_SOCKET_CONNECT_TIMEOUT = 5000;
     public static final int SHOW_OWNER_DURATION = 1500;
-    public static final int BROADCAST_PROTOCOL_VERSION = 3;
+    public static final long PLAYER_MOVIE_CACHE_BUDGET = 16 * 1024 * 1024;
+    // movies with more pixels are played from a mapped file, not the heap
+    public static final long PLAYER_MAPPED_FRAMES_THRESHOLD = 1024 * 1024;
+    // draw frames as one scaled bitmap instead of one rectangle per pixel
+    public static final boolean PLAYER_BITMAP_RENDERER = true;
+    // rendered frames of looping movies kept for the next round, 0 disables
+    public static final long PLAYER_FRAME_CACHE_BUDGET = 8 * 1024 * 1024;
+    // a movie sent in chunks starts once this many milliseconds are there
+    public static final long PLAYER_PROGRESSIVE_LOOKAHEAD = 2000;
+    // larger movie files are sent in chunks of frames
+    public static final long SERVER_PROGRESSIVE_THRESHOLD = 256 * 1024;
+    // joins and leaves within this many milliseconds make one new layout
+    public static final long SERVER_LAYOUT_DELAY = 100;
+    // messages waiting for a player before the oldest arrows are dropped
+    public static final int SERVER_SEND_QUEUE_CAPACITY = 32;
+    // movies sent to players at the same time, the others wait their turn
+    public static final int SERVER_MAX_UPLOADS = 2;
+    public static final int BROADCAST_PROTOCOL_VERSION = 6;
     public static final String DOWNLOAD_URL = "market://details?id=org.cbase.blinkendroid";
     public static final String ABOUT_URL = "http://code.google.com/p/blinkendroid";
 }
@@ -17,6 +17,7 @@
 
 package org.cbase.blinkendroid;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
@@ -25,7 +26,11 @@ import java.util.Map;
 
 import org.cbase.blinkendroid.network.BlinkendroidClient;
 import org.cbase.blinkendroid.network.BlinkendroidListener;
+import org.cbase.blinkendroid.network.MovieDiskCache;
 import org.cbase.blinkendroid.player.ArrowView;
+import org.cbase.blinkendroid.player.FrameStore;
+import org.cbase.blinkendroid.player.HeapFrameStore;
+import org.cbase.blinkendroid.player.MappedFrameStore;
 import org.cbase.blinkendroid.player.PlayerView;
 import org.cbase.blinkendroid.player.bml.BBMZParser;
 import org.cbase.blinkendroid.player.bml.BLM;
@@ -62,8 +67,13 @@ public class PlayerActivity extends Activity implements BlinkendroidListener,
     private ArrowView arrowView;
     private TextView ownerView;
     private BlinkendroidClient blinkendroidClient;
+    // the default movie, parsed once
     private BLM blm;
+    // the movie being played, touched on the UI thread only
+    private FrameStore frames;
     private boolean playing = false;
+    // once round trip samples arrive, one-way time stamps are ignored
+    volatile private boolean clockSynced = false;
     private Map<Integer, Long> arrowDurations = new HashMap<Integer, Long>();
     private float arrowScale = 0f;
     private final Handler handler = new Handler();
@@ -129,7 +139,10 @@ public class PlayerActivity extends Activity implements BlinkendroidListener,
 	blinkendroidClient = new BlinkendroidClient(
 		new InetSocketAddress(getIntent().getStringExtra(
 			INTENT_EXTRA_IP), getIntent().getIntExtra(
-			INTENT_EXTRA_PORT, Constants.SERVER_PORT)), this);
+			INTENT_EXTRA_PORT, Constants.SERVER_PORT)), this,
+		new MovieDiskCache(new File(getCacheDir(), "movies"),
+			Constants.PLAYER_MOVIE_CACHE_BUDGET), new File(
+			getCacheDir(), "frames"));
 	blinkendroidClient.start();
 
 	if (playing)
@@ -154,6 +167,13 @@ public class PlayerActivity extends Activity implements BlinkendroidListener,
 	super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+	release(frames);
+	frames = null;
+	super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
 	getMenuInflater().inflate(R.menu.player_options, menu);
@@ -162,6 +182,8 @@ public class PlayerActivity extends Activity implements BlinkendroidListener,
 
     public void serverTime(final long serverTime) {
 	Log.d(Constants.LOG_TAG, "*** time " + serverTime);
+	if (clockSynced)
+	    return;
 	final long timeDelta = System.currentTimeMillis() - serverTime;
 	runOnUiThread(new Runnable() {
 	    public void run() {
@@ -170,16 +192,39 @@ public class PlayerActivity extends Activity implements BlinkendroidListener,
 	});
     }
 
+    public void clockOffset(final long offset, final long uncertainty) {
+	Log.d(Constants.LOG_TAG, "*** clock offset " + offset + " +/- "
+		+ uncertainty);
+	clockSynced = true;
+	runOnUiThread(new Runnable() {
+	    public void run() {
+		playerView.setTimeDelta(-offset, uncertainty);
+	    }
+	});
+    }
+
     public void play(final int x, final int y, final long startTime,
 	    final BLM movie) {
+	// a large movie arrives as a mapped store, not here
+	play(x, y, startTime, null == movie ? null : new HeapFrameStore(movie));
+    }
+
+    public void play(final int x, final int y, final long startTime,
+	    final FrameStore frames) {
 	Log.d(Constants.LOG_TAG, "*** play " + startTime);
 	runOnUiThread(new Runnable() {
 	    public void run() {
-		blm = movie;
-		if (blm == null)
-		    blm = new BBMZParser().parseBBMZ(getResources()
-			    .openRawResource(R.raw.blinkendroid1), 14345);
-		playerView.setBLM(blm);
+		if (frames != PlayerActivity.this.frames)
+		    release(PlayerActivity.this.frames);
+		PlayerActivity.this.frames = frames;
+		if (null != frames) {
+		    playerView.setFrameStore(frames);
+		} else {
+		    if (blm == null)
+			blm = new BBMZParser().parseBBMZ(getResources()
+				.openRawResource(R.raw.blinkendroid1), 14345);
+		    playerView.setBLM(blm);
+		}
 		playerView.setStartTime(startTime);
 		playerView.startPlaying();
 		playing = true;
@@ -187,6 +232,11 @@ public class PlayerActivity extends Activity implements BlinkendroidListener,
 	});
     }
 
+    private static void release(FrameStore frames) {
+	if (frames instanceof MappedFrameStore)
+	    ((MappedFrameStore) frames).release();
+    }
+
     public void clip(final float startX, final float startY, final float endX,
 	    final float endY) {
 	Log.d(Constants.LOG_TAG, "*** clip " + startX + "," + startY + ","
@@ -198,6 +248,15 @@ public class PlayerActivity extends Activity implements BlinkendroidListener,
 	});
     }
 
+    public void seek(final long startTime) {
+	Log.d(Constants.LOG_TAG, "*** seek " + startTime);
+	runOnUiThread(new Runnable() {
+	    public void run() {
+		playerView.setStartTime(startTime);
+	    }
+	});
+    }
+
     public void arrow(final long duration, final float angle, final int color) {
 	Log.d(Constants.LOG_TAG, "*** arrow " + angle + " " + duration);
 	runOnUiThread(new Runnable() {
@@ -11,6 +11,7 @@ import org.cbase.blinkendroid.utils.NetworkUtils;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.Log;
@@ -89,9 +90,15 @@ public class ServerActivity extends Activity implements ConnectionListener,
 			.toString());
 		senderThread.start();
 
+		final SharedPreferences prefs = PreferenceManager
+			.getDefaultSharedPreferences(ServerActivity.this);
 		blinkendroidServer = new BlinkendroidServer(
-			ServerActivity.this, Constants.SERVER_PORT);
+			ServerActivity.this, Constants.SERVER_PORT, prefs
+				.getBoolean("server_nio", false));
+		blinkendroidServer.setTimeBeacon(prefs.getBoolean(
+			"server_time_beacon", false));
 		blinkendroidServer.start();
+		blinkendroidServer.preload(blmManager.getBLMHeaders());
 
 		startButton.setEnabled(false);
 		stopButton.setEnabled(true);
@@ -170,6 +177,8 @@ public class ServerActivity extends Activity implements ConnectionListener,
 	runOnUiThread(new Runnable() {
 	    public void run() {
 		blmManager.fillArrayAdapter(movieAdapter);
+		if (null != blinkendroidServer)
+		    blinkendroidServer.preload(blmManager.getBLMHeaders());
 		Toast.makeText(ServerActivity.this, "Movies ready",
 			Toast.LENGTH_SHORT).show();
 	    }
@@ -2,35 +2,54 @@ package org.cbase.blinkendroid.network;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
-
-import org.cbase.blinkendroid.Constants;
-
-import android.util.Log;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AbstractBlinkendroidProtocol {
 
-    public static final Integer PROTOCOL_PLAYER = 42;
-    public static final Integer COMMAND_PLAYER_TIME = 23;
-    public static final Integer COMMAND_CLIP = 17;
-    public static final Integer COMMAND_PLAY = 11;
-    public static final Integer COMMAND_INIT = 77;
-    public static final Integer COMMAND_SHUTDOWN = 69;
+    public static final int PROTOCOL_PLAYER = 42;
+    public static final int COMMAND_PLAYER_TIME = 23;
+    public static final int COMMAND_CLIP = 17;
+    public static final int COMMAND_PLAY = 11;
+    public static final int COMMAND_PLAY_HASH = 12;
+    public static final int COMMAND_MOVIE_NEED = 13;
+    public static final int COMMAND_MOVIE_HAVE = 14;
+    public static final int COMMAND_SEEK = 15;
+    public static final int COMMAND_PLAY_FRAMES = 16;
+    public static final int COMMAND_FRAMES = 18;
+    public static final int COMMAND_INIT = 77;
+    public static final int COMMAND_SHUTDOWN = 69;
+    public static final int COMMAND_TIME_REQUEST = 31;
+    public static final int COMMAND_TIME_RESPONSE = 32;
+    public static final int COMMAND_CLOCK_REPORT = 33;
+    public static final int COMMAND_HELLO = 34;
+    public static final int COMMAND_BULK_ATTACH = 35;
+
+    private static final int MAX_PROTOCOL = 128;
 
     protected BufferedOutputStream out;
     protected BufferedInputStream in;
     protected Socket socket;
+    protected NioConnection connection;
     protected ReceiverThread receiverThread;
-    protected final HashMap<Integer, CommandHandler> handlers = new HashMap<Integer, CommandHandler>();
-    private List<ConnectionListener> connectionListener = new ArrayList<ConnectionListener>();
+    protected final CommandHandler[] handlers = new CommandHandler[MAX_PROTOCOL];
+    // held for a message and its whole attachment, which must not be split.
+    // Fair, so a waiting message gets the socket as soon as the attachment
+    // is written, e.g. between the FRAMES chunks of a movie, but not within
+    // a movie sent as one PLAY attachment
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private byte[] copyBuffer;
+    private List<ConnectionListener> connectionListener = new CopyOnWriteArrayList<ConnectionListener>();
     private boolean server;
 
     protected AbstractBlinkendroidProtocol(final Socket socket,
@@ -42,23 +61,211 @@ public class AbstractBlinkendroidProtocol {
 	this.out = new BufferedOutputStream(socket.getOutputStream());
 	this.in = new BufferedInputStream(socket.getInputStream());
 	this.connectionListener.add(connectionListener);
-	receiverThread = new ReceiverThread();
-	receiverThread.start();
 	System.out.println("AbstractBlinkendroidProtocol constructor "
 		+ (System.currentTimeMillis() - t));
     }
 
+    /**
+     * Creates a protocol on top of a non-blocking connection. No receiver
+     * thread is started, the {@link NioTransport} selector loop serves the
+     * connection instead.
+     */
+    protected AbstractBlinkendroidProtocol(final NioConnection connection,
+	    ConnectionListener connectionListener, boolean server) {
+	this.connection = connection;
+	this.socket = connection.getSocket();
+	this.server = server;
+	this.connectionListener.add(connectionListener);
+	connection.setProtocol(this);
+    }
+
+    /**
+     * Starts the blocking receiver thread. Subclasses call this once their
+     * handlers are registered, so no message is dispatched into the void.
+     */
+    protected void startReceiving() {
+	if (null != connection || null != receiverThread)
+	    return;
+	receiverThread = new ReceiverThread();
+	receiverThread.start();
+    }
+
     public void addConnectionClosedListener(
 	    ConnectionListener connectionListener) {
 	this.connectionListener.add(connectionListener);
     }
 
-    public void registerHandler(Integer proto, CommandHandler handler) {
-	handlers.put(proto, handler);
+    public void registerHandler(int proto, CommandHandler handler) {
+	handlers[proto] = handler;
     }
 
     public void unregisterHandler(CommandHandler handler) {
-	handlers.remove(handler);
+	for (int i = 0; i < handlers.length; i++) {
+	    if (handlers[i] == handler)
+		handlers[i] = null;
+	}
+    }
+
+    /**
+     * Hands a received message to the handler of its protocol.
+     *
+     * @param message
+     *            positioned at the protocol id, limited to the message
+     */
+    void dispatch(ByteBuffer message) throws IOException {
+	final int proto = message.getInt();
+	if (proto < 0 || proto >= handlers.length)
+	    return;
+	final CommandHandler handler = handlers[proto];
+	if (null != handler)
+	    handler.handle(message);
+    }
+
+    /**
+     * Sends a message obtained by {@link MessageCodec#begin(int, int)}. The
+     * message buffer is given back to the pool afterwards.
+     */
+    protected void send(ByteBuffer message) throws IOException {
+	writeLock.lock();
+	try {
+	    write(message, false);
+	} finally {
+	    writeLock.unlock();
+	}
+    }
+
+    /**
+     * Sends a message followed by the remaining bytes of a shared buffer.
+     * The buffer's position is not changed.
+     */
+    protected void send(ByteBuffer message, ByteBuffer attachment)
+	    throws IOException {
+	writeLock.lock();
+	try {
+	    MessageCodec.finish(message);
+	    if (null != connection) {
+		connection.enqueue(message, attachment.duplicate());
+		return;
+	    }
+	    try {
+		out.write(message.array(), 0, message.limit());
+		copy(attachment.duplicate());
+		out.flush();
+	    } finally {
+		MessageCodec.release(message);
+	    }
+	} finally {
+	    writeLock.unlock();
+	}
+    }
+
+    /**
+     * Sends a message followed by the whole content of <code>file</code>,
+     * which is closed afterwards. On a non-blocking connection the file goes
+     * to the socket by {@link FileChannel#transferTo}; a blocking socket has
+     * no channel, so the file is mapped and copied in chunks. Either way the
+     * listener, if any, is told about every chunk.
+     */
+    protected void send(ByteBuffer message, FileInputStream file,
+	    TransferListener listener) throws IOException {
+	writeLock.lock();
+	try {
+	    MessageCodec.finish(message);
+	    if (null != connection) {
+		connection.enqueue(message, new FileRegion(file, listener));
+		return;
+	    }
+	    try {
+		out.write(message.array(), 0, message.limit());
+		copy(file.getChannel(), listener);
+		out.flush();
+	    } finally {
+		MessageCodec.release(message);
+		file.close();
+	    }
+	} finally {
+	    writeLock.unlock();
+	}
+    }
+
+    /**
+     * Sends a message unless another one is being sent right now. On a
+     * non-blocking connection it goes ahead of any bulk data still queued,
+     * so it must not depend on the order of other messages; time stamps are
+     * what this is for.
+     *
+     * @return false if the message was dropped
+     */
+    protected boolean sendIfIdle(ByteBuffer message) throws IOException {
+	if (!writeLock.tryLock()) {
+	    MessageCodec.release(message);
+	    return false;
+	}
+	try {
+	    write(message, true);
+	    return true;
+	} finally {
+	    writeLock.unlock();
+	}
+    }
+
+    /**
+     * Runs the task once everything sent so far has left, which on a blocking
+     * socket it has already.
+     */
+    protected void whenSent(Runnable task) {
+	if (null != connection)
+	    connection.whenSent(task);
+	else
+	    task.run();
+    }
+
+    private void write(ByteBuffer message, boolean urgent)
+	    throws IOException {
+	MessageCodec.finish(message);
+	if (null != connection) {
+	    if (urgent)
+		connection.enqueueUrgent(message);
+	    else
+		connection.enqueue(message);
+	    return;
+	}
+	try {
+	    out.write(message.array(), 0, message.limit());
+	    out.flush();
+	} finally {
+	    MessageCodec.release(message);
+	}
+    }
+
+    private void copy(ByteBuffer attachment) throws IOException {
+	final byte[] buffer = copyBuffer();
+	while (attachment.hasRemaining()) {
+	    final int n = Math.min(buffer.length, attachment.remaining());
+	    attachment.get(buffer, 0, n);
+	    out.write(buffer, 0, n);
+	}
+    }
+
+    private void copy(FileChannel file, TransferListener listener)
+	    throws IOException {
+	final long total = file.size();
+	final MappedByteBuffer content = file.map(FileChannel.MapMode.READ_ONLY,
+		0, total);
+	while (content.hasRemaining()) {
+	    final ByteBuffer chunk = content.slice();
+	    chunk.limit(Math.min(FileRegion.CHUNK, chunk.remaining()));
+	    content.position(content.position() + chunk.limit());
+	    copy(chunk);
+	    if (null != listener)
+		listener.transferProgress(content.position(), total);
+	}
+    }
+
+    private byte[] copyBuffer() {
+	if (null == copyBuffer)
+	    copyBuffer = new byte[8192];
+	return copyBuffer;
     }
 
     protected void connectionClosed(InetAddress inetAddress) {
@@ -75,6 +282,12 @@ public class AbstractBlinkendroidProtocol {
 
     public void close() {
 	System.out.println(getMyName() + " BlinkendroidProtocol: Start close");
+	if (null != connection) {
+	    connection.close();
+	    System.out.println(getMyName()
+		    + " BlinkendroidProtocol: connection closed.");
+	    return;
+	}
 	try {
 	    out.close();
 	    System.out.println(getMyName()
@@ -93,6 +306,12 @@ public class AbstractBlinkendroidProtocol {
 	}
     }
 
+    public boolean isOpen() {
+	if (null != connection)
+	    return connection.isOpen();
+	return !socket.isClosed();
+    }
+
     public void shutdown() {
 	close();
 	if (null != receiverThread) {
@@ -113,23 +332,18 @@ public class AbstractBlinkendroidProtocol {
 	public void run() {
 	    running = true;
 	    System.out.println(getMyName() + " InputThread started");
-	    int inputLine;
 	    connectionOpened(socket.getInetAddress());
+	    // reused for every message, grows to the largest one received
+	    ByteBuffer message = ByteBuffer.allocate(256);
 	    try {
-		byte[] buffer = new byte[4];
-		while (running && in.read(buffer) != -1) {
-		    inputLine = ByteBuffer.wrap(buffer).getInt();
+		while (running) {
+		    message = MessageCodec.read(in, message);
 		    if (!running) // fast exit
 			break;
-
-		    // System.out.println(getMyName() +
-		    // " InputThread received: "
-		    // + inputLine);
-
-		    CommandHandler handler = handlers.get(inputLine);
-		    if (null != handler)
-			handler.handle(in);
+		    dispatch(message);
 		}
+	    } catch (EOFException e) {
+		System.out.println(getMyName() + " end of stream.");
 	    } catch (SocketException e) {
 		System.out.println(getMyName() + " Socket closed.");
 	    } catch (IOException e) {
@@ -164,66 +378,4 @@ public class AbstractBlinkendroidProtocol {
 	else
 	    return "Client ";// + socket.getRemoteSocketAddress();
     }
-
-    protected long readLong(BufferedInputStream in) throws IOException {
-	byte[] buffer = new byte[8];
-	// try {
-	in.read(buffer);
-	// } catch (IOException e) {
-	// Log.e(Constants.LOG_TAG,"readLong failed ",e);
-	// }
-	return ByteBuffer.wrap(buffer).getLong();
-    }
-
-    protected int readInt(BufferedInputStream in) throws IOException {
-	byte[] buffer = new byte[4];
-	// try {
-	in.read(buffer);
-	// } catch (IOException e) {
-	// Log.e(Constants.LOG_TAG,"readLong failed ",e);
-	// }
-	return ByteBuffer.wrap(buffer).getInt();
-    }
-
-    protected float readFloat(BufferedInputStream in) throws IOException {
-	byte[] buffer = new byte[16];
-	// try {
-	in.read(buffer);
-	// } catch (IOException e) {
-	// Log.e(Constants.LOG_TAG,"readLong failed ",e);
-	// }
-	return ByteBuffer.wrap(buffer).getFloat();
-    }
-
-    protected void writeInt(BufferedOutputStream out, int i) throws IOException {
-	byte[] buffer = new byte[4];
-	ByteBuffer.wrap(buffer).putInt(i);
-	// try {
-	out.write(buffer);
-	// } catch (IOException e) {
-	// Log.e(Constants.LOG_TAG,"writeInt failed ",e);
-	// }
-    }
-
-    protected void writeFloat(BufferedOutputStream out, float f)
-	    throws IOException {
-	byte[] buffer = new byte[16];
-	ByteBuffer.wrap(buffer).putFloat(f);
-	// try {
-	out.write(buffer);
-	// } catch (IOException e) {
-	// Log.e(Constants.LOG_TAG,"writeFloat failed ",e);
-	// }
-    }
-
-    protected void writeLong(BufferedOutputStream out, long l)
-	    throws IOException {
-	byte[] buffer = new byte[8];
-	ByteBuffer.wrap(buffer).putLong(l);
-	// try {
-	out.write(buffer);
-	// } catch (IOException e) {
-	// Log.e(Constants.LOG_TAG,"writeLong failed ",e);
-	// }
-    }
-}
\ No newline at end of file
+}
@@ -17,24 +17,61 @@
 
 package org.cbase.blinkendroid.network;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import org.cbase.blinkendroid.Constants;
+import org.cbase.blinkendroid.network.broadcast.TimeBeaconReceiverThread;
 
 //import android.util.Log;
 
 public class BlinkendroidClient extends Thread {
 
+    // a quick burst of clock samples after connecting, then fewer
+    private static final int CLOCK_SYNC_BURST = 8;
+    private static final long CLOCK_SYNC_BURST_INTERVAL = 100;
+    private static final long CLOCK_SYNC_INTERVAL = 2000;
+
     private final InetSocketAddress socketAddress;
     private final BlinkendroidListener listener;
+    private final MovieDiskCache movieCache;
+    private final File spillDir;
     private BlinkendroidClientProtocol protocol;
+    private TimeBeaconReceiverThread timeBeaconReceiver;
+    volatile private boolean running = true;
 
     public BlinkendroidClient(final InetSocketAddress socketAddress,
 	    final BlinkendroidListener listener) {
+	this(socketAddress, listener, null, null);
+    }
+
+    /**
+     * @param movieCache
+     *            keeps received movies, so they are not sent again. May be
+     *            null.
+     */
+    public BlinkendroidClient(final InetSocketAddress socketAddress,
+	    final BlinkendroidListener listener, MovieDiskCache movieCache) {
+	this(socketAddress, listener, movieCache, null);
+    }
+
+    /**
+     * @param movieCache
+     *            keeps received movies, so they are not sent again. May be
+     *            null.
+     * @param spillDir
+     *            where large movies are decoded into mapped files instead of
+     *            onto the heap. May be null.
+     */
+    public BlinkendroidClient(final InetSocketAddress socketAddress,
+	    final BlinkendroidListener listener, MovieDiskCache movieCache,
+	    File spillDir) {
 	this.socketAddress = socketAddress;
 	this.listener = listener;
+	this.movieCache = movieCache;
+	this.spillDir = spillDir;
     }
 
     @Override
@@ -45,7 +82,11 @@ public class BlinkendroidClient extends Thread {
 	    long t = System.currentTimeMillis();
 	    socket.connect(socketAddress,
 		    Constants.SERVER_SOCKET_CONNECT_TIMEOUT);
-	    protocol = new BlinkendroidClientProtocol(socket, listener);
+	    protocol = new BlinkendroidClientProtocol(socket, listener,
+		    movieCache, spillDir);
+	    timeBeaconReceiver = new TimeBeaconReceiverThread(socket
+		    .getInetAddress(), listener);
+	    timeBeaconReceiver.start();
 	    System.out.println("connected " + (System.currentTimeMillis() - t));
 
 	} catch (final IOException x) {
@@ -53,12 +94,36 @@ public class BlinkendroidClient extends Thread {
 	    x.printStackTrace();
 	    listener.connectionFailed(x.getClass().getName() + ": "
 		    + x.getMessage());
+	    return;
+	}
+	clockSyncLoop();
+    }
+
+    /**
+     * Keeps measuring the server clock offset while connected.
+     */
+    private void clockSyncLoop() {
+	int requests = 0;
+	while (running && protocol.isOpen()) {
+	    protocol.requestTime();
+	    requests++;
+	    try {
+		Thread.sleep(requests < CLOCK_SYNC_BURST ? CLOCK_SYNC_BURST_INTERVAL
+			: CLOCK_SYNC_INTERVAL);
+	    } catch (InterruptedException e) {
+		// swallow, this is expected when being interrupted
+	    }
 	}
+	System.out.println("clock sync stopped");
     }
 
     public void shutdown() {
+	running = false;
+	interrupt();
 	if (null != protocol)
 	    protocol.shutdown();
+	if (null != timeBeaconReceiver)
+	    timeBeaconReceiver.shutdown();
 	System.out.println("client shutdown completed");
     }
 
@@ -1,74 +1,525 @@
 package org.cbase.blinkendroid.network;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import org.cbase.blinkendroid.Constants;
+import org.cbase.blinkendroid.player.FrameStore;
+import org.cbase.blinkendroid.player.MappedFrameStore;
+import org.cbase.blinkendroid.player.ProgressiveFrameStore;
 import org.cbase.blinkendroid.player.bml.BBMZParser;
 import org.cbase.blinkendroid.player.bml.BLM;
+import org.cbase.blinkendroid.player.bml.BLMReader;
 
 public class BlinkendroidClientProtocol extends AbstractBlinkendroidProtocol
 	implements CommandHandler {
+    // report the clock estimate to the server after that many samples
+    private static final int CLOCK_REPORT_SAMPLES = 8;
+    private static final byte[] NO_HASH = new byte[MovieHash.SIZE];
+    // sent in the hello, the version of the bulk channel spoken here
+    private static final int BULK_VERSION = 1;
+
     private BlinkendroidListener listener;
     private InetAddress address;
+    private final ClockSync clockSync = new ClockSync();
+    private final MovieDiskCache movieCache;
+    // large movies are decoded into mapped files here, if not null
+    private final File spillDir;
+    private TransferListener transferListener;
+    // movie arriving in chunks of frames
+    volatile private Progressive progressive;
+    // the newest movie the server started, older ones still arriving on the
+    // bulk channel are ignored
+    private int transfer;
+    private boolean transferKnown = false;
+    // second connection the server sends movies on, if it offered one
+    volatile private BulkChannel bulk;
 
+    /**
+     * @param movieCache
+     *            movies received before, may be null
+     * @param spillDir
+     *            where large movies are decoded into mapped files, may be
+     *            null to keep every movie on the heap
+     */
     protected BlinkendroidClientProtocol(final Socket socket,
-	    final BlinkendroidListener listener) throws IOException {
+	    final BlinkendroidListener listener, MovieDiskCache movieCache,
+	    File spillDir) throws IOException {
 	super(socket, listener, false);
 	this.listener = listener;
+	this.movieCache = movieCache;
+	this.spillDir = spillDir;
 	this.address = socket.getInetAddress();
 	registerHandler(PROTOCOL_PLAYER, this);
+	startReceiving();
+	hello();
     }
 
-    public void handle(BufferedInputStream in) throws IOException {
-	Integer command = readInt(in);
-	// System.out.println("received: " + command);
-	if (listener != null) {
-	    if (command == COMMAND_PLAYER_TIME) {
-		listener.serverTime(readLong(in));
-	    } else if (command == COMMAND_CLIP) {
-		final float startX = readFloat(in);
-		final float startY = readFloat(in);
-		final float endX = readFloat(in);
-		final float endY = readFloat(in);
-		System.out.println("clip: " + startX + "," + startY + ","
-			+ endX + "," + endY);
-		listener.clip(startX, startY, endX, endY);
-	    } else if (command == COMMAND_PLAY) {
-		final int x = readInt(in);
-		final int y = readInt(in);
-		final long serverTime = readLong(in);
-		final long startTime = readLong(in);
-		final long length = readLong(in);
-
-		BBMZParser parser = new BBMZParser();
-		BLM blm = null;
-		// if length == 0 play default
-		if (length == 0) {
-		}
-		// else read BLM
-		else {
-		    blm = parser.parseBBMZ(in, length);
-		    // while (in.read(buffer) != -1) {
-		    // inputLine= ByteBuffer.wrap(buffer).getInt();
-		    // if (!running) // fast exit
-		    // break;
-		    // }
-		    long length2 = readLong(in);
-		    System.out.println("play length1 " + length + " length2:"
-			    + length2);
+    /**
+     * Tells the server that movies may come on a second connection. A server
+     * that does not know about it ignores the message.
+     */
+    private void hello() {
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_HELLO);
+	    message.putInt(BULK_VERSION);
+	    send(message);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("hello failed ");
+	}
+    }
+
+    /**
+     * Opens the second connection the server offered, away from the receiver
+     * thread so messages keep coming meanwhile.
+     */
+    private void openBulk(final int port, final long token) {
+	new Thread("bulk connect") {
+	    @Override
+	    public void run() {
+		try {
+		    final Socket socket = new Socket();
+		    socket.connect(new InetSocketAddress(address, port),
+			    Constants.SERVER_SOCKET_CONNECT_TIMEOUT);
+		    final BulkChannel channel = new BulkChannel(socket, false);
+		    channel.registerHandler(PROTOCOL_PLAYER,
+			    new CommandHandler() {
+				public void handle(ByteBuffer message)
+					throws IOException {
+				    BlinkendroidClientProtocol.this.handle(
+					    message, channel.getInput());
+				}
+			    });
+		    channel.addConnectionClosedListener(new ConnectionListener() {
+			public void connectionOpened(InetAddress inetAddress) {
+			}
+
+			public void connectionClosed(InetAddress inetAddress) {
+			    if (bulk == channel)
+				bulk = null;
+			}
+		    });
+		    final ByteBuffer message = MessageCodec.begin(
+			    PROTOCOL_PLAYER, COMMAND_BULK_ATTACH);
+		    message.putLong(token);
+		    channel.send(message);
+		    bulk = channel;
+		    channel.start();
+		    if (!isOpen())
+			closeBulk();
+		    System.out.println("bulk channel open");
+		} catch (IOException e) {
+		    e.printStackTrace();
+		    System.out.println("bulk channel failed, "
+			    + "movies come on the first connection");
 		}
+	    }
+	}.start();
+    }
+
+    private void closeBulk() {
+	final BulkChannel channel = bulk;
+	bulk = null;
+	if (null != channel)
+	    channel.shutdown();
+    }
+
+    @Override
+    public void close() {
+	super.close();
+	closeBulk();
+    }
+
+    /**
+     * Starts a round trip to estimate the server clock offset.
+     */
+    public void requestTime() {
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_TIME_REQUEST);
+	    message.putLong(System.currentTimeMillis());
+	    send(message);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("requestTime failed ");
+	}
+    }
+
+    private void timeResponse(long t0, long t1, long t2, long t3) {
+	if (!clockSync.addSample(t0, t1, t2, t3))
+	    return;
+	final long offset = clockSync.getOffset();
+	final long uncertainty = clockSync.getUncertainty();
+	if (listener != null)
+	    listener.clockOffset(offset, uncertainty);
+	if (clockSync.getSampleCount() % CLOCK_REPORT_SAMPLES == 0) {
+	    try {
+		final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+			COMMAND_CLOCK_REPORT);
+		message.putLong(offset);
+		message.putLong(uncertainty);
+		send(message);
+	    } catch (IOException e) {
+		e.printStackTrace();
+		System.out.println("clock report failed ");
+	    }
+	}
+    }
+
+    private void movieAnswer(int command, byte[] hash) {
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    command);
+	    message.put(hash);
+	    send(message);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("movie answer failed ");
+	}
+    }
+
+    /**
+     * @param transferListener
+     *            told about the progress of movies being received
+     */
+    public void setTransferListener(TransferListener transferListener) {
+	this.transferListener = transferListener;
+    }
+
+    public ClockSync getClockSync() {
+	return clockSync;
+    }
+
+    public void handle(ByteBuffer message) throws IOException {
+	handle(message, in);
+    }
+
+    /**
+     * Called by the receivers of both connections. Time stamps are handled at
+     * once; everything else one message at a time, so a movie arriving on
+     * the bulk channel and a message on the first connection do not change
+     * the player's state at the same time. A movie is read and parsed before
+     * it takes its turn, so messages on the other connection need not wait
+     * for it.
+     * 
+     * @param in
+     *            the stream of the connection the message came on, which
+     *            carries its attachment
+     */
+    private void handle(ByteBuffer message, InputStream in) throws IOException {
+	final int command = message.getInt();
+	// System.out.println("received: " + command);
+	if (listener == null)
+	    return;
+	if (command == COMMAND_PLAYER_TIME) {
+	    listener.serverTime(message.getLong());
+	} else if (command == COMMAND_TIME_RESPONSE) {
+	    final long t3 = System.currentTimeMillis();
+	    timeResponse(message.getLong(), message.getLong(), message
+		    .getLong(), t3);
+	} else if (command == COMMAND_PLAY) {
+	    receiveMovie(message, in);
+	} else {
+	    synchronized (this) {
+		handleCommand(command, message, in);
+	    }
+	}
+    }
+
+    /**
+     * Reads and parses the movie attached to a PLAY message without holding
+     * the lock, then plays it unless a newer one was started meanwhile.
+     */
+    private void receiveMovie(ByteBuffer message, InputStream in)
+	    throws IOException {
+	final int x = message.getInt();
+	final int y = message.getInt();
+	final long serverTime = message.getLong();
+	final long startTime = message.getLong();
+	final long length = message.getLong();
+	final byte[] hash = new byte[MovieHash.SIZE];
+	message.get(hash);
+	final int transfer = message.getInt();
+	if (!current(transfer)) {
+	    // the stream must stay in step
+	    MessageCodec.skipAttachment(in, length);
+	    return;
+	}
 
-		listener.serverTime(serverTime);
-		listener.play(x, y, startTime, blm);
-	    } else if (command == COMMAND_INIT) {
-		final int degrees = readInt(in);
-		final int color = readInt(in);
-		listener.arrow(4000, degrees, color);
-	    } else if (command == COMMAND_SHUTDOWN) {
-		listener.connectionClosed(address);
+	BBMZParser parser = new BBMZParser();
+	BLM blm = null;
+	final MappedFrameStore.Spill spill = spill();
+	MovieDiskCache.Recording recording;
+	// if length == 0 play default
+	if (length == 0) {
+	}
+	// else read BLM, which follows the message as attachment
+	else if (null != (recording = record(hash, length, in))) {
+	    // the movie goes to the cache while it is parsed
+	    try {
+		blm = parser.parseBBMZ(recording, length, transferListener,
+			spill);
+		if (null != blm)
+		    recording.finish();
+	    } finally {
+		recording.abort();
+	    }
+	    System.out.println("play cached length " + length);
+	} else {
+	    blm = parser.parseBBMZ(in, length, transferListener, spill);
+	    System.out.println("play length " + length);
+	}
+
+	synchronized (this) {
+	    if (!current(transfer)) {
+		if (null != spill)
+		    spill.finish(null);
+		return;
+	    }
+	    progressive = null;
+	    listener.serverTime(serverTime);
+	    play(x, y, startTime, blm, spill);
+	}
+    }
+
+    /**
+     * Callers hold the lock.
+     */
+    private void handleCommand(int command, ByteBuffer message, InputStream in)
+	    throws IOException {
+	if (command == COMMAND_CLIP) {
+	    final float startX = message.getFloat();
+	    final float startY = message.getFloat();
+	    final float endX = message.getFloat();
+	    final float endY = message.getFloat();
+	    System.out.println("clip: " + startX + "," + startY + ","
+		    + endX + "," + endY);
+	    listener.clip(startX, startY, endX, endY);
+	} else if (command == COMMAND_PLAY_FRAMES) {
+	    final int x = message.getInt();
+	    final int y = message.getInt();
+	    final long serverTime = message.getLong();
+	    final long startTime = message.getLong();
+	    final byte[] hash = new byte[MovieHash.SIZE];
+	    message.get(hash);
+	    final int transfer = message.getInt();
+	    final int length = message.getInt();
+	    final byte[] header = MessageCodec.readAttachment(in, length)
+		    .array();
+	    if (!current(transfer))
+		return;
+
+	    listener.serverTime(serverTime);
+	    progressive = null;
+	    try {
+		final BLM blm = BLMReader.readHeader(new ByteArrayInputStream(
+			header));
+		progressive = new Progressive(transfer, x, y, startTime,
+			System.currentTimeMillis() - serverTime, hash,
+			new ProgressiveFrameStore(blm));
+		System.out.println("play frames of " + blm.frames.size());
+		progressiveFrames(progressive);
+	    } catch (IOException e) {
+		e.printStackTrace();
+		System.out.println("not a valid movie header");
+	    }
+	} else if (command == COMMAND_FRAMES) {
+	    final int transfer = message.getInt();
+	    final int first = message.getInt();
+	    final int count = message.getInt();
+	    final int length = message.getInt();
+	    final byte[] chunk = MessageCodec.readAttachment(in, length)
+		    .array();
+
+	    final Progressive p = progressive;
+	    if (null == p || p.transfer != transfer) {
+		System.out.println("frames of another movie ignored");
+		return;
+	    }
+	    final ProgressiveFrameStore frames = p.frames;
+	    if (first < 0 || count < 0
+		    || first + count > frames.getFrameCount()) {
+		System.out.println("frames out of range " + first + "+"
+			+ count);
+		return;
+	    }
+	    try {
+		frames.setPixels(first, FrameChunks.decode(chunk, count,
+			frames.getHeader().width * frames.getHeader().height));
+	    } catch (IOException e) {
+		e.printStackTrace();
+		System.out.println("invalid frames " + first + "+" + count);
+		return;
+	    }
+	    progressiveFrames(p);
+	} else if (command == COMMAND_PLAY_HASH) {
+	    final int x = message.getInt();
+	    final int y = message.getInt();
+	    final long serverTime = message.getLong();
+	    final long startTime = message.getLong();
+	    final byte[] hash = new byte[MovieHash.SIZE];
+	    message.get(hash);
+	    if (!current(message.getInt()))
+		return;
+	    progressive = null;
+
+	    final byte[] movie = null == movieCache ? null : movieCache
+		    .get(hash);
+	    if (null == movie) {
+		System.out.println("play hash miss " + MovieHash.toHex(hash));
+		movieAnswer(COMMAND_MOVIE_NEED, hash);
+		return;
+	    }
+	    System.out.println("play hash hit " + MovieHash.toHex(hash));
+	    movieAnswer(COMMAND_MOVIE_HAVE, hash);
+	    final MappedFrameStore.Spill spill = spill();
+	    final BLM blm = new BBMZParser().parseBBMZ(
+		    new ByteArrayInputStream(movie), movie.length, null,
+		    spill);
+	    listener.serverTime(serverTime);
+	    play(x, y, startTime, blm, spill);
+	} else if (command == COMMAND_SEEK) {
+	    final long serverTime = message.getLong();
+	    final long startTime = message.getLong();
+	    System.out.println("seek: " + startTime);
+	    listener.serverTime(serverTime);
+	    listener.seek(startTime);
+	} else if (command == COMMAND_INIT) {
+	    final int degrees = message.getInt();
+	    final int color = message.getInt();
+	    listener.arrow(4000, degrees, color);
+	} else if (command == COMMAND_SHUTDOWN) {
+	    listener.connectionClosed(address);
+	} else if (command == COMMAND_HELLO) {
+	    final long token = message.getLong();
+	    final int port = message.getInt();
+	    System.out.println("server offers bulk channel on port " + port);
+	    openBulk(port, token);
+	}
+    }
+
+    /**
+     * Movies sent on the bulk channel may arrive after a newer one the server
+     * announced on the first connection. The server numbers them, so a late
+     * one is recognized.
+     * 
+     * @return false if the server started a newer movie already
+     */
+    private synchronized boolean current(int transfer) {
+	if (transferKnown && transfer - this.transfer < 0) {
+	    System.out.println("movie " + transfer + " replaced by "
+		    + this.transfer + ", ignored");
+	    return false;
+	}
+	this.transfer = transfer;
+	transferKnown = true;
+	return true;
+    }
+
+    /**
+     * @return where the next movie is decoded into if it is large, or null
+     */
+    private MappedFrameStore.Spill spill() {
+	if (null == spillDir)
+	    return null;
+	return new MappedFrameStore.Spill(spillDir,
+		Constants.PLAYER_MAPPED_FRAMES_THRESHOLD);
+    }
+
+    /**
+     * Plays a parsed movie from the mapped file it was decoded into, if it
+     * was.
+     */
+    private void play(int x, int y, long startTime, BLM blm,
+	    MappedFrameStore.Spill spill) {
+	final FrameStore frames = null == spill ? null : spill.finish(blm);
+	if (null != frames)
+	    listener.play(x, y, startTime, frames);
+	else
+	    listener.play(x, y, startTime, blm);
+    }
+
+    /**
+     * @return a stream storing the movie that follows in the cache, or null
+     *         if it is not to be kept
+     */
+    private MovieDiskCache.Recording record(byte[] hash, long length,
+	    InputStream in) {
+	if (null == movieCache || Arrays.equals(NO_HASH, hash))
+	    return null;
+	return movieCache.record(hash, length, in);
+    }
+
+    /**
+     * Starts playing once the frames for now and a little later are there,
+     * and keeps the movie when it is complete.
+     */
+    private void progressiveFrames(Progressive p) {
+	final ProgressiveFrameStore frames = p.frames;
+	final boolean complete = frames.isComplete();
+	if (!p.started) {
+	    final long time = serverTime(p) - p.startTime;
+	    if (complete
+		    || frames.isReady(time,
+			    Constants.PLAYER_PROGRESSIVE_LOOKAHEAD)) {
+		p.started = true;
+		listener.play(p.x, p.y, p.startTime, frames);
 	    }
 	}
+	if (!complete)
+	    return;
+	progressive = null;
+	System.out.println("play frames complete");
+	if (null == movieCache || Arrays.equals(NO_HASH, p.hash))
+	    return;
+	try {
+	    movieCache.put(p.hash, BBMZParser.toBBMZ(frames.getBLM()));
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("could not cache movie");
+	}
+    }
+
+    /**
+     * @return the server time now by the synchronized clock, or by the time
+     *         the movie was sent before the first clock sample
+     */
+    private long serverTime(Progressive p) {
+	if (clockSync.getUncertainty() != Long.MAX_VALUE)
+	    return System.currentTimeMillis() + clockSync.getOffset();
+	return System.currentTimeMillis() - p.timeDelta;
+    }
+
+    private static class Progressive {
+
+	final int transfer;
+	final int x, y;
+	final long startTime;
+	// local time minus server time when the movie was announced, used
+	// until the clock is synchronized
+	final long timeDelta;
+	final byte[] hash;
+	final ProgressiveFrameStore frames;
+	boolean started = false;
+
+	Progressive(int transfer, int x, int y, long startTime,
+		long timeDelta, byte[] hash, ProgressiveFrameStore frames) {
+	    this.transfer = transfer;
+	    this.x = x;
+	    this.y = y;
+	    this.startTime = startTime;
+	    this.timeDelta = timeDelta;
+	    this.hash = hash;
+	    this.frames = frames;
+	}
     }
-}
\ No newline at end of file
+}
@@ -17,6 +17,7 @@
 
 package org.cbase.blinkendroid.network;
 
+import org.cbase.blinkendroid.player.FrameStore;
 import org.cbase.blinkendroid.player.bml.BLM;
 
 /**
@@ -28,9 +29,31 @@ public interface BlinkendroidListener extends ConnectionListener {
 
     void serverTime(long serverTime);
 
+    /**
+     * @param offset
+     *            estimated server time minus local time in milliseconds
+     * @param uncertainty
+     *            maximum error of the estimate in milliseconds
+     */
+    void clockOffset(long offset, long uncertainty);
+
     void play(int x, int y, long startTime, BLM blm);
 
+    /**
+     * Plays a movie whose frames may still be arriving.
+     */
+    void play(int x, int y, long startTime, FrameStore frames);
+
     void clip(float startX, float startY, float endX, float endY);
 
+    /**
+     * Jumps within the movie being played, without loading it again.
+     * 
+     * @param startTime
+     *            server time at which the movie would have started to be at
+     *            the new position now
+     */
+    void seek(long startTime);
+
     void arrow(long duration, float angle, int color);
 }
@@ -20,37 +20,204 @@ package org.cbase.blinkendroid.network;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-import org.cbase.blinkendroid.Constants;
+public class BlinkendroidServerProtocol extends AbstractBlinkendroidProtocol
+	implements CommandHandler {
 
-public class BlinkendroidServerProtocol extends AbstractBlinkendroidProtocol {
+    private static final byte[] NO_HASH = new byte[MovieHash.SIZE];
 
-    GlobalTimerThread globalTimerThread;
+    // last clock estimate reported by the player
+    volatile private long clockOffset;
+    volatile private long clockUncertainty = Long.MAX_VALUE;
+    private TransferListener transferListener;
+    volatile private UploadScheduler uploadScheduler;
+    // movie announced by hash, waiting for the player's answer
+    volatile private Announcement announcement;
+    // counts the movies sent, so sending a replaced one stops; every play
+    // carries it, so the player ignores a replaced one that got through
+    volatile private int transfer;
+    // offers players a second connection for movies, may be null
+    private final BulkAcceptor bulkAcceptor;
+    volatile private long bulkToken;
+    volatile private BulkChannel bulk;
 
     public BlinkendroidServerProtocol(final Socket socket,
 	    ConnectionListener connectionListener) throws IOException {
+	this(socket, connectionListener, null);
+    }
+
+    /**
+     * @param bulkAcceptor
+     *            offers the player a {@link BulkChannel} for movies, may be
+     *            null
+     */
+    public BlinkendroidServerProtocol(final Socket socket,
+	    ConnectionListener connectionListener, BulkAcceptor bulkAcceptor)
+	    throws IOException {
 	super(socket, connectionListener, true);
+	this.bulkAcceptor = bulkAcceptor;
+	registerHandler(PROTOCOL_PLAYER, this);
+	startReceiving();
+    }
+
+    public BlinkendroidServerProtocol(final NioConnection connection,
+	    ConnectionListener connectionListener) {
+	this(connection, connectionListener, null);
+    }
+
+    public BlinkendroidServerProtocol(final NioConnection connection,
+	    ConnectionListener connectionListener, BulkAcceptor bulkAcceptor) {
+	super(connection, connectionListener, true);
+	this.bulkAcceptor = bulkAcceptor;
+	registerHandler(PROTOCOL_PLAYER, this);
     }
 
-    public void startTimerThread() {
-	if (globalTimerThread != null) {
-	    globalTimerThread.shutdown();
+    public void handle(ByteBuffer message) throws IOException {
+	final int command = message.getInt();
+	if (command == COMMAND_TIME_REQUEST) {
+	    final long t1 = System.currentTimeMillis();
+	    final long t0 = message.getLong();
+	    final ByteBuffer response = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_TIME_RESPONSE);
+	    response.putLong(t0);
+	    response.putLong(t1);
+	    response.putLong(System.currentTimeMillis());
+	    // a response queued behind a movie would only be a bad sample, the
+	    // player asks again anyway
+	    sendIfIdle(response);
+	} else if (command == COMMAND_CLOCK_REPORT) {
+	    clockOffset = message.getLong();
+	    clockUncertainty = message.getLong();
+	} else if (command == COMMAND_MOVIE_NEED) {
+	    final byte[] hash = new byte[MovieHash.SIZE];
+	    message.get(hash);
+	    movieNeeded(hash);
+	} else if (command == COMMAND_MOVIE_HAVE) {
+	    final byte[] hash = new byte[MovieHash.SIZE];
+	    message.get(hash);
+	    final Announcement a = announcement;
+	    if (null != a && Arrays.equals(a.hash, hash))
+		announcement = null;
+	    System.out.println("player has movie " + MovieHash.toHex(hash));
+	} else if (command == COMMAND_HELLO) {
+	    hello(message.getInt());
+	}
+    }
+
+    /**
+     * Answers a player that can take movies on a second connection with the
+     * token and port to open it with.
+     */
+    private void hello(int version) {
+	final BulkAcceptor acceptor = bulkAcceptor;
+	if (null == acceptor) {
+	    System.out.println("player hello " + version
+		    + ", no bulk channel offered");
+	    return;
+	}
+	bulkToken = acceptor.register(this);
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_HELLO);
+	    message.putLong(bulkToken);
+	    message.putInt(acceptor.getPort());
+	    send(message);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("hello failed ");
 	}
-	globalTimerThread = new GlobalTimerThread();
-	globalTimerThread.start();
+    }
+
+    /**
+     * Sends movies on the player's second connection from now on.
+     */
+    void attachBulk(final BulkChannel channel) {
+	channel.addConnectionClosedListener(new ConnectionListener() {
+	    public void connectionOpened(InetAddress inetAddress) {
+	    }
+
+	    public void connectionClosed(InetAddress inetAddress) {
+		if (bulk == channel) {
+		    bulk = null;
+		    System.out.println("bulk channel closed, "
+			    + "movies go on the first connection");
+		}
+	    }
+	});
+	final BulkChannel previous = bulk;
+	bulk = channel;
+	if (null != previous)
+	    previous.shutdown();
+	if (!isOpen())
+	    closeBulk();
+	System.out.println("bulk channel attached");
+    }
+
+    /**
+     * @return the connection movies are sent on
+     */
+    private AbstractBlinkendroidProtocol bulk() {
+	final BulkChannel channel = bulk;
+	if (null != channel && channel.isOpen())
+	    return channel;
+	return this;
+    }
+
+    private void closeBulk() {
+	final BulkChannel channel = bulk;
+	bulk = null;
+	if (null != channel)
+	    channel.shutdown();
+    }
+
+    @Override
+    public void close() {
+	super.close();
+	if (null != bulkAcceptor)
+	    bulkAcceptor.unregister(bulkToken);
+	closeBulk();
+    }
+
+    /**
+     * @return the server clock offset last reported by the player
+     */
+    public long getClockOffset() {
+	return clockOffset;
+    }
+
+    /**
+     * @return the maximum error of the player's clock estimate, or
+     *         {@link Long#MAX_VALUE} if it has not reported yet
+     */
+    public long getClockUncertainty() {
+	return clockUncertainty;
+    }
+
+    /**
+     * @param transferListener
+     *            told about the progress of movies sent from a file
+     */
+    public void setTransferListener(TransferListener transferListener) {
+	this.transferListener = transferListener;
+    }
+
+    /**
+     * @param uploadScheduler
+     *            decides when movies are sent, they are sent at once if null
+     */
+    public void setUploadScheduler(UploadScheduler uploadScheduler) {
+	this.uploadScheduler = uploadScheduler;
     }
 
     @Override
     public void shutdown() {
 	System.out.println("BlinkendroidServerProtocol.shutdown() initiated");
-	if (null != globalTimerThread)
-	    globalTimerThread.shutdown();
 	try {
-	    writeInt(out, PROTOCOL_PLAYER);
-	    writeInt(out, COMMAND_SHUTDOWN);
-	    out.flush();
+	    send(MessageCodec.begin(PROTOCOL_PLAYER, COMMAND_SHUTDOWN));
 	} catch (IOException e) {
 	    e.printStackTrace();
 	    System.out.println("send shutdown failed ");
@@ -61,62 +228,307 @@ public class BlinkendroidServerProtocol extends AbstractBlinkendroidProtocol {
 	System.out.println("BlinkendroidServerProtocol.shutdown() sended");
     }
 
-    public void play(int x, int y, long l, long startTime, String bbmzFileName) {
+    public void play(final int x, final int y, long l, final long startTime,
+	    final String bbmzFileName) {
+	final int transfer = nextTransfer();
+	if (null == bbmzFileName) {
+	    play(x, y, l, startTime, bbmzFileName, null, transfer);
+	    return;
+	}
+	upload(new File(bbmzFileName).length(), new Runnable() {
+	    public void run() {
+		if (replaced(transfer))
+		    return;
+		play(x, y, System.currentTimeMillis(), startTime, bbmzFileName,
+			null, transfer);
+	    }
+	});
+    }
+
+    /**
+     * Plays a movie that is already in memory, e.g. in the server's movie
+     * cache. The buffer is shared and not modified.
+     */
+    public void play(final int x, final int y, long l, final long startTime,
+	    final ByteBuffer movie) {
+	final int transfer = nextTransfer();
+	upload(movie.remaining(), new Runnable() {
+	    public void run() {
+		if (replaced(transfer))
+		    return;
+		play(x, y, System.currentTimeMillis(), startTime, movie, null,
+			transfer);
+	    }
+	});
+    }
+
+    /**
+     * Plays a movie in chunks of frames. The chunk the player shows at the
+     * moment is sent first, the others follow in the order they are shown,
+     * so the player can start before the whole movie has arrived.
+     */
+    public void play(final int x, final int y, long l, final long startTime,
+	    final FrameChunks frames) {
+	final int transfer = nextTransfer();
+	upload(frames.getSize(), new Runnable() {
+	    public void run() {
+		playFrames(x, y, System.currentTimeMillis(), startTime, frames,
+			null, transfer);
+	    }
+	});
+    }
+
+    public void announce(int x, int y, long l, long startTime, byte[] hash,
+	    String bbmzFileName, ByteBuffer movie) {
+	announce(x, y, l, startTime, hash, bbmzFileName, movie, null);
+    }
+
+    /**
+     * Tells the player which movie to play by its {@link MovieHash} only. The
+     * movie itself is sent when the player answers that it does not have it:
+     * in chunks of frames if <code>frames</code> is not null, otherwise
+     * <code>movie</code> if not null, the file otherwise.
+     */
+    public void announce(int x, int y, long l, long startTime, byte[] hash,
+	    String bbmzFileName, ByteBuffer movie, FrameChunks frames) {
+	final int transfer = nextTransfer();
+	announcement = new Announcement(x, y, startTime, hash, bbmzFileName,
+		movie, frames, transfer);
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_PLAY_HASH);
+	    message.putInt(x);
+	    message.putInt(y);
+	    message.putLong(l);
+	    message.putLong(startTime);
+	    message.put(hash);
+	    message.putInt(transfer);
+	    send(message);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("announce failed ");
+	}
+    }
+
+    private void movieNeeded(final byte[] hash) {
+	final Announcement a = announcement;
+	if (null == a || !Arrays.equals(a.hash, hash)) {
+	    System.out.println("movie needed that is no longer announced");
+	    return;
+	}
+	announcement = null;
+	final int transfer = a.transfer;
+	final long size;
+	if (null != a.frames)
+	    size = a.frames.getSize();
+	else if (null != a.movie)
+	    size = a.movie.remaining();
+	else
+	    size = new File(a.bbmzFileName).length();
+	upload(size, new Runnable() {
+	    public void run() {
+		if (replaced(transfer))
+		    return;
+		// the time the movie leaves, where the player starts from
+		final long now = System.currentTimeMillis();
+		if (null != a.frames)
+		    playFrames(a.x, a.y, now, a.startTime, a.frames, hash,
+			    transfer);
+		else if (null != a.movie)
+		    play(a.x, a.y, now, a.startTime, a.movie.duplicate(), hash,
+			    transfer);
+		else
+		    play(a.x, a.y, now, a.startTime, a.bbmzFileName, hash,
+			    transfer);
+	    }
+	});
+    }
+
+    /**
+     * Sends a movie when the upload scheduler, if any, lets it.
+     */
+    private void upload(long size, final Runnable send) {
+	final UploadScheduler scheduler = uploadScheduler;
+	if (null == scheduler) {
+	    send.run();
+	    return;
+	}
+	scheduler.submit(this, size, new Runnable() {
+	    public void run() {
+		try {
+		    send.run();
+		} finally {
+		    bulk().whenSent(new Runnable() {
+			public void run() {
+			    scheduler.finished(BlinkendroidServerProtocol.this);
+			}
+		    });
+		}
+	    }
+	});
+    }
+
+    private void play(int x, int y, long l, long startTime,
+	    String bbmzFileName, byte[] hash, int transfer) {
 	try {
-	    writeInt(out, PROTOCOL_PLAYER);
-	    writeInt(out, COMMAND_PLAY);
-	    writeInt(out, x);
-	    writeInt(out, y);
-	    writeLong(out, l);
-	    writeLong(out, startTime);
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_PLAY);
+	    message.putInt(x);
+	    message.putInt(y);
+	    message.putLong(l);
+	    message.putLong(startTime);
 
 	    if (null == bbmzFileName) {
-		writeLong(out, 0);
+		message.putLong(0);
+		putHash(message, null);
+		message.putInt(transfer);
+		send(message);
 		System.out.println("Play default video ");
 	    } else {
 		File movie = new File(bbmzFileName);
 		if (null != movie && movie.exists()) {
 
 		    try {
-			writeLong(out, movie.length());
-			System.out.println("try to read file with bytes "
-				+ movie.length());
-			InputStream is = new FileInputStream(movie);
-			byte[] buffer = new byte[1024];
-			int allLen = 0;
-			int len;
-			while ((len = is.read(buffer)) != -1) {
-			    out.write(buffer, 0, len);
-			    allLen += len;
-			}
-			is.close();
-			System.out
-				.println("send movie bytes " + movie.length());
-			writeLong(out, movie.length());
+			final FileInputStream is = new FileInputStream(movie);
+			// size of the channel, so the announced length matches
+			// what is transferred even if the file is replaced
+			final long length = is.getChannel().size();
+			message.putLong(length);
+			putHash(message, hash);
+			message.putInt(transfer);
+			System.out.println("try to send file with bytes "
+				+ length);
+			bulk().send(message, is, transferListener);
+			System.out.println("send movie bytes " + length);
 		    } catch (IOException ioe) {
 			ioe.printStackTrace();
 			System.out.println("sending movie failed");
 		    }
 		} else {
+		    MessageCodec.release(message);
 		    System.out.println("movie not found" + bbmzFileName);
 		}
 	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("play failed ");
+	}
+    }
 
-	    out.flush();
+    private void play(int x, int y, long l, long startTime, ByteBuffer movie,
+	    byte[] hash, int transfer) {
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_PLAY);
+	    message.putInt(x);
+	    message.putInt(y);
+	    message.putLong(l);
+	    message.putLong(startTime);
+	    message.putLong(movie.remaining());
+	    putHash(message, hash);
+	    message.putInt(transfer);
+	    bulk().send(message, movie);
+	    System.out.println("send cached movie bytes " + movie.remaining());
 	} catch (IOException e) {
 	    e.printStackTrace();
 	    System.out.println("play failed ");
 	}
     }
 
-    public void arrow(int degrees, int color) {
+    private void playFrames(int x, int y, long l, long startTime,
+	    FrameChunks frames, byte[] hash, int transfer) {
+	// the header and all chunks on the same connection
+	final AbstractBlinkendroidProtocol channel = bulk();
 	try {
-	    writeInt(out, PROTOCOL_PLAYER);
-	    writeInt(out, COMMAND_INIT);
-	    writeInt(out, degrees);
-	    writeInt(out, color);
+	    ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_PLAY_FRAMES);
+	    message.putInt(x);
+	    message.putInt(y);
+	    message.putLong(l);
+	    message.putLong(startTime);
+	    putHash(message, hash);
+	    message.putInt(transfer);
+	    message.putInt(frames.getHeader().length);
+	    channel.send(message, ByteBuffer.wrap(frames.getHeader()));
 
-	    out.flush();
+	    final int count = frames.getChunkCount();
+	    final int first = frames.chunkAt(l - startTime);
+	    long sent = frames.getHeader().length;
+	    for (int i = 0; i < count; i++) {
+		if (transfer != this.transfer) {
+		    System.out.println("frames replaced by another movie");
+		    return;
+		}
+		final int chunk = (first + i) % count;
+		final byte[] content = frames.getChunk(chunk);
+		message = MessageCodec.begin(PROTOCOL_PLAYER, COMMAND_FRAMES);
+		message.putInt(transfer);
+		message.putInt(frames.getFirstFrame(chunk));
+		message.putInt(frames.getFrameCount(chunk));
+		message.putInt(content.length);
+		channel.send(message, ByteBuffer.wrap(content));
+		sent += content.length;
+		if (null != transferListener)
+		    transferListener.transferProgress(sent, frames.getSize());
+	    }
+	    System.out.println("send movie frames in chunks " + count);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("play frames failed ");
+	}
+    }
+
+    private synchronized int nextTransfer() {
+	return ++transfer;
+    }
+
+    /**
+     * @return true if another movie was started after the given transfer
+     */
+    private boolean replaced(int transfer) {
+	if (transfer == this.transfer)
+	    return false;
+	System.out.println("movie replaced by another one");
+	return true;
+    }
+
+    /**
+     * Writes the hash, or zeros if the movie is not to be cached.
+     */
+    private static void putHash(ByteBuffer message, byte[] hash) {
+	if (null != hash)
+	    message.put(hash);
+	else
+	    message.put(NO_HASH);
+    }
+
+    /**
+     * Moves the player to another position in the movie it plays.
+     * 
+     * @param startTime
+     *            server time at which the movie would have started to be at
+     *            the new position now
+     */
+    public void seek(long l, long startTime) {
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_SEEK);
+	    message.putLong(l);
+	    message.putLong(startTime);
+	    send(message);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("seek failed ");
+	}
+    }
+
+    public void arrow(int degrees, int color) {
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_INIT);
+	    message.putInt(degrees);
+	    message.putInt(color);
+	    send(message);
 	} catch (IOException e) {
 	    e.printStackTrace();
 	    System.out.println("arrow failed ");
@@ -125,13 +537,13 @@ public class BlinkendroidServerProtocol extends AbstractBlinkendroidProtocol {
 
     public void clip(float startX, float startY, float endX, float endY) {
 	try {
-	    writeInt(out, PROTOCOL_PLAYER);
-	    writeInt(out, COMMAND_CLIP);
-	    writeFloat(out, startX);
-	    writeFloat(out, startY);
-	    writeFloat(out, endX);
-	    writeFloat(out, endY);
-	    out.flush();
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_CLIP);
+	    message.putFloat(startX);
+	    message.putFloat(startY);
+	    message.putFloat(endX);
+	    message.putFloat(endY);
+	    send(message);
 	    System.out.println("clip flushed ");
 	} catch (IOException e) {
 	    e.printStackTrace();
@@ -140,42 +552,42 @@ public class BlinkendroidServerProtocol extends AbstractBlinkendroidProtocol {
     }
 
     /**
-     * This thread sends the global time to connected devices.
+     * Sends the global time. The tick is skipped if the connection is still
+     * busy sending something else, a late time stamp is of no use anyway.
      */
-    class GlobalTimerThread extends Thread {
-
-	volatile private boolean running = true;
+    public void serverTime(long t) {
+	try {
+	    final ByteBuffer message = MessageCodec.begin(PROTOCOL_PLAYER,
+		    COMMAND_PLAYER_TIME);
+	    message.putLong(t);
+	    sendIfIdle(message);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("serverTime failed ");
+	}
+    }
 
-	@Override
-	public void run() {
-	    System.out.println("GlobalTimerThread started");
-	    while (running) {
-		try {
-		    GlobalTimerThread.sleep(100);
-		} catch (InterruptedException e) {
-		    // swallow
-		}
-		if (!running) // fast exit
-		    break;
+    private static class Announcement {
 
-		long t = System.currentTimeMillis();
-		try {
-		    writeInt(out, PROTOCOL_PLAYER);
-		    writeInt(out, COMMAND_PLAYER_TIME);
-		    writeLong(out, t);
-		    out.flush();
-		} catch (IOException e) {
-		    e.printStackTrace();
-		    System.out.println("GlobalTimerThread failed ");
-		}
-	    }
-	    System.out.println("GlobalTimerThread stopped");
-	}
+	final int x, y;
+	final long startTime;
+	final byte[] hash;
+	final String bbmzFileName;
+	final ByteBuffer movie;
+	final FrameChunks frames;
+	final int transfer;
 
-	public void shutdown() {
-	    running = false;
-	    interrupt();
-	    System.out.println("GlobalTimerThread initiating shutdown");
+	Announcement(int x, int y, long startTime, byte[] hash,
+		String bbmzFileName, ByteBuffer movie, FrameChunks frames,
+		int transfer) {
+	    this.x = x;
+	    this.y = y;
+	    this.startTime = startTime;
+	    this.hash = hash;
+	    this.bbmzFileName = bbmzFileName;
+	    this.movie = movie;
+	    this.frames = frames;
+	    this.transfer = transfer;
 	}
     }
 }
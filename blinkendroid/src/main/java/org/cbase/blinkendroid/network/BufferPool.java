@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A pool of equally sized heap buffers, so that encoding a message does not
+ * create garbage.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayList<ByteBuffer> free = new ArrayList<ByteBuffer>();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+	this.bufferSize = bufferSize;
+	this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a cleared buffer, either recycled or newly allocated
+     */
+    public ByteBuffer acquire() {
+	synchronized (free) {
+	    final int size = free.size();
+	    if (size > 0) {
+		final ByteBuffer buffer = free.remove(size - 1);
+		buffer.clear();
+		return buffer;
+	    }
+	}
+	return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Hands a buffer back. Buffers that were not taken from a pool of this
+     * size are ignored, so it is safe to pass any buffer.
+     */
+    public void release(ByteBuffer buffer) {
+	if (buffer.capacity() != bufferSize || buffer.isReadOnly()
+		|| !buffer.hasArray())
+	    return;
+	synchronized (free) {
+	    if (free.size() < maxPooled)
+		free.add(buffer);
+	}
+    }
+
+    public int getBufferSize() {
+	return bufferSize;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.network;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cbase.blinkendroid.Constants;
+
+/**
+ * Accepts the {@link BulkChannel}s of players on a port of its own, and hands
+ * each to the protocol of the player that was given its token. Either on a
+ * thread of its own with a receiver thread per channel, or within the
+ * selector loop of a {@link NioTransport}.
+ */
+public class BulkAcceptor extends Thread implements NioTransport.AcceptListener {
+
+    // null if the selector loop accepts
+    private final ServerSocket serverSocket;
+    private final int port;
+    private final SecureRandom random = new SecureRandom();
+    // players told a token that have not connected yet
+    private final HashMap<Long, BlinkendroidServerProtocol> waiting = new HashMap<Long, BlinkendroidServerProtocol>();
+    // channels accepted by the selector loop that have not sent their token
+    // yet, with the time they were accepted; used by that loop only
+    private final LinkedHashMap<BulkChannel, Long> unattached = new LinkedHashMap<BulkChannel, Long>();
+    volatile private boolean running = true;
+
+    /**
+     * Opens a free port, served once the thread is started.
+     */
+    public BulkAcceptor() throws IOException {
+	super("BulkAcceptor");
+	serverSocket = new ServerSocket(0);
+	serverSocket.setReuseAddress(true);
+	port = serverSocket.getLocalPort();
+    }
+
+    /**
+     * Opens a free port on the transport, served by its selector loop. The
+     * thread is not to be started.
+     */
+    public BulkAcceptor(NioTransport transport) throws IOException {
+	super("BulkAcceptor");
+	serverSocket = null;
+	port = transport.listen(0, this);
+    }
+
+    public int getPort() {
+	return port;
+    }
+
+    /**
+     * @return a token the player connects with
+     */
+    synchronized long register(BlinkendroidServerProtocol player) {
+	long token;
+	do {
+	    token = random.nextLong();
+	} while (waiting.containsKey(token));
+	waiting.put(token, player);
+	return token;
+    }
+
+    synchronized void unregister(long token) {
+	waiting.remove(token);
+    }
+
+    private synchronized BlinkendroidServerProtocol take(long token) {
+	return waiting.remove(token);
+    }
+
+    @Override
+    public void run() {
+	System.out.println("BulkAcceptor started on port " + getPort());
+	while (running) {
+	    try {
+		attach(serverSocket.accept());
+	    } catch (SocketException e) {
+		// expected after closing the socket
+		System.out.println("BulkAcceptor accept ended");
+	    } catch (IOException e) {
+		e.printStackTrace();
+		System.out.println("BulkAcceptor could not accept");
+	    }
+	}
+	System.out.println("BulkAcceptor ended");
+    }
+
+    public void accepted(NioConnection connection) {
+	final long now = System.currentTimeMillis();
+	// a non-blocking connection has no read timeout, so players that never
+	// sent their token are dropped as others connect
+	final Iterator<Map.Entry<BulkChannel, Long>> i = unattached.entrySet()
+		.iterator();
+	while (i.hasNext()) {
+	    final Map.Entry<BulkChannel, Long> entry = i.next();
+	    if (now - entry.getValue() < Constants.SERVER_SOCKET_CONNECT_TIMEOUT)
+		break;
+	    i.remove();
+	    System.out.println("BulkAcceptor rejected connection: no token");
+	    entry.getKey().close();
+	}
+	final BulkChannel channel = new BulkChannel(connection, true);
+	channel.registerHandler(AbstractBlinkendroidProtocol.PROTOCOL_PLAYER,
+		new Attach(channel, null));
+	unattached.put(channel, now);
+    }
+
+    /**
+     * Starts receiving on the connection. The token the player sends first
+     * is read by the channel's own receiver thread, so a slow player does not
+     * hold up the others connecting.
+     */
+    private void attach(Socket socket) {
+	try {
+	    socket.setSoTimeout(Constants.SERVER_SOCKET_CONNECT_TIMEOUT);
+	    final BulkChannel channel = new BulkChannel(socket, true);
+	    channel.registerHandler(AbstractBlinkendroidProtocol.PROTOCOL_PLAYER,
+		    new Attach(channel, socket));
+	    channel.start();
+	} catch (IOException e) {
+	    System.out.println("BulkAcceptor rejected connection: "
+		    + e.getMessage());
+	    try {
+		socket.close();
+	    } catch (IOException x) {
+		x.printStackTrace();
+	    }
+	}
+    }
+
+    public void close() {
+	running = false;
+	// a port of the transport is closed with it
+	if (null != serverSocket) {
+	    try {
+		serverSocket.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+	synchronized (this) {
+	    waiting.clear();
+	}
+    }
+
+    /**
+     * Gives a connection to the protocol of the player whose token arrives
+     * on it first.
+     */
+    private class Attach implements CommandHandler {
+
+	private final BulkChannel channel;
+	// null on a non-blocking connection
+	private final Socket socket;
+	private boolean attached = false;
+
+	Attach(BulkChannel channel, Socket socket) {
+	    this.channel = channel;
+	    this.socket = socket;
+	}
+
+	public void handle(ByteBuffer message) throws IOException {
+	    if (attached)
+		return; // players send nothing else on it
+	    if (null == socket)
+		unattached.remove(channel);
+	    if (message.getInt() != AbstractBlinkendroidProtocol.COMMAND_BULK_ATTACH) {
+		reject("not a bulk connection");
+		return;
+	    }
+	    final BlinkendroidServerProtocol player = take(message.getLong());
+	    if (null == player) {
+		reject("unknown bulk token");
+		return;
+	    }
+	    attached = true;
+	    if (null != socket)
+		socket.setSoTimeout(0);
+	    player.attachBulk(channel);
+	}
+
+	private void reject(String reason) {
+	    System.out.println("BulkAcceptor rejected connection: " + reason);
+	    channel.close();
+	}
+    }
+}
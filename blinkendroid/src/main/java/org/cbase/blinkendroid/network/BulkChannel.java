@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * The second connection between server and player, which carries only
+ * movies. Time and control messages stay on the first connection, so they
+ * never wait behind a movie.
+ * <p>
+ * A player asks for it with {@link AbstractBlinkendroidProtocol#COMMAND_HELLO}
+ * and the server answers with a token and the port to connect to. The player
+ * then opens the connection and sends the token in
+ * {@link AbstractBlinkendroidProtocol#COMMAND_BULK_ATTACH}. Without it, as
+ * with an older server or player, movies go on the first connection.
+ */
+class BulkChannel extends AbstractBlinkendroidProtocol {
+
+    // listeners are added by the owner of the channel
+    private static final ConnectionListener NO_LISTENER = new ConnectionListener() {
+	public void connectionOpened(InetAddress inetAddress) {
+	}
+
+	public void connectionClosed(InetAddress inetAddress) {
+	}
+    };
+
+    BulkChannel(Socket socket, boolean server) throws IOException {
+	super(socket, NO_LISTENER, server);
+    }
+
+    /**
+     * On a non-blocking connection, served by the {@link NioTransport}
+     * selector loop instead of a receiver thread.
+     */
+    BulkChannel(NioConnection connection, boolean server) {
+	super(connection, NO_LISTENER, server);
+    }
+
+    /**
+     * Starts receiving, after the handlers are registered. Does nothing on a
+     * non-blocking connection.
+     */
+    void start() {
+	startReceiving();
+    }
+
+    /**
+     * @return the stream attachments of received messages are read from
+     */
+    InputStream getInput() {
+	return in;
+    }
+
+    @Override
+    protected String getMyName() {
+	return super.getMyName() + "bulk ";
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network;
+
+/**
+ * Estimates the offset of the server clock from round trip samples, the way
+ * NTP does.
+ * <p>
+ * A sample consists of the client send time t0, the server receive time t1,
+ * the server send time t2 and the client receive time t3. Its offset is
+ * ((t1 - t0) + (t2 - t3)) / 2 and its error is at most half the round trip
+ * delay (t3 - t0) - (t2 - t1). Out of the last samples the one with the
+ * smallest delay is trusted most; the estimate moves towards it smoothly so
+ * the picture does not jump on every sample.
+ */
+public class ClockSync {
+
+    private static final int WINDOW = 8;
+    private static final int SMOOTHING = 4;
+
+    private final long[] offsets = new long[WINDOW];
+    private final long[] delays = new long[WINDOW];
+    private int samples = 0;
+    // fractional, so small differences still move it
+    private double smoothed;
+    private long offset;
+    private long uncertainty = Long.MAX_VALUE;
+
+    /**
+     * @return true if the estimate has been updated
+     */
+    public synchronized boolean addSample(long t0, long t1, long t2, long t3) {
+	final long delay = (t3 - t0) - (t2 - t1);
+	if (delay < 0)
+	    return false; // clock jumped during the exchange
+	final int slot = samples % WINDOW;
+	offsets[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+	delays[slot] = delay;
+	samples++;
+
+	int best = 0;
+	final int filled = Math.min(samples, WINDOW);
+	for (int i = 1; i < filled; i++) {
+	    if (delays[i] < delays[best])
+		best = i;
+	}
+
+	if (samples == 1)
+	    smoothed = offsets[best];
+	else
+	    smoothed += (offsets[best] - smoothed) / SMOOTHING;
+	offset = Math.round(smoothed);
+	uncertainty = delays[best] / 2 + Math.abs(offsets[best] - offset);
+	return true;
+    }
+
+    /**
+     * @return server time minus local time in milliseconds
+     */
+    public synchronized long getOffset() {
+	return offset;
+    }
+
+    /**
+     * @return the maximum error of {@link #getOffset()} in milliseconds, or
+     *         {@link Long#MAX_VALUE} before the first sample
+     */
+    public synchronized long getUncertainty() {
+	return uncertainty;
+    }
+
+    public synchronized int getSampleCount() {
+	return samples;
+    }
+}
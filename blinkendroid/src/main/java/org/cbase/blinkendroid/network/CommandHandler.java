@@ -1,9 +1,14 @@
 package org.cbase.blinkendroid.network;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface CommandHandler {
 
-    void handle(BufferedInputStream bis) throws IOException;
+    /**
+     * @param message
+     *            a received message, positioned after the protocol id. It is
+     *            only valid during the call.
+     */
+    void handle(ByteBuffer message) throws IOException;
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A file queued on a {@link NioConnection}. It is handed to the socket with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the
+ * content does not pass through the Java heap.
+ */
+class FileRegion {
+
+    // bytes per transferTo call, also the granularity of progress reports
+    static final int CHUNK = 64 * 1024;
+
+    private final FileInputStream file;
+    private final FileChannel channel;
+    private final long total;
+    private final TransferListener listener;
+    private long position = 0;
+
+    FileRegion(FileInputStream file, TransferListener listener)
+	    throws IOException {
+	this.file = file;
+	this.channel = file.getChannel();
+	this.total = channel.size();
+	this.listener = listener;
+    }
+
+    /**
+     * Transfers as much as the target accepts right now.
+     * 
+     * @return true when the whole file has been transferred
+     */
+    boolean transferTo(WritableByteChannel target) throws IOException {
+	while (position < total) {
+	    final long n = channel.transferTo(position, Math.min(CHUNK, total
+		    - position), target);
+	    if (n <= 0)
+		return false;
+	    position += n;
+	    if (null != listener)
+		listener.transferProgress(position, total);
+	}
+	return true;
+    }
+
+    void close() {
+	try {
+	    file.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+}
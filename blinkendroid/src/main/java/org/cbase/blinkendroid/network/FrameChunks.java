@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.cbase.blinkendroid.player.bml.BBMZParser;
+import org.cbase.blinkendroid.player.bml.BLM;
+import org.cbase.blinkendroid.player.bml.BLMWriter;
+import org.cbase.blinkendroid.player.bml.FrameDelta;
+
+/**
+ * A movie cut into chunks of consecutive frames, each compressed on its own.
+ * A chunk starts with a byte telling how its frames are encoded, followed by
+ * the deflated frames: either all of them whole, or a keyframe holding all
+ * pixels and {@link FrameDelta}s to the frame before. Deflate usually does
+ * better on whole frames, so both are compressed and the smaller one is
+ * kept. The chunks can be sent in any order, so a player joining in the middle of a movie gets the keyframe
+ * before the frame it has to show first, and starts playing early.
+ */
+public class FrameChunks {
+
+    // pixel bytes per chunk before encoding, at least one frame and no more
+    // than the keyframe interval of the file format
+    private static final int CHUNK_PIXELS = 64 * 1024;
+
+    private static final byte ENCODING_WHOLE = 0;
+    private static final byte ENCODING_DELTA = 1;
+
+    private final byte[] hash;
+    private final byte[] header;
+    // start time of every chunk, followed by the end of the last
+    private final long[] starts;
+    private final int[] firstFrames;
+    private final byte[][] chunks;
+    private final long size;
+
+    private FrameChunks(byte[] hash, byte[] header, long[] starts,
+	    int[] firstFrames, byte[][] chunks) {
+	this.hash = hash;
+	this.header = header;
+	this.starts = starts;
+	this.firstFrames = firstFrames;
+	this.chunks = chunks;
+	long size = header.length;
+	for (byte[] chunk : chunks)
+	    size += chunk.length;
+	this.size = size;
+    }
+
+    public static FrameChunks build(BLM blm) throws IOException {
+	final ByteArrayOutputStream header = new ByteArrayOutputStream();
+	BLMWriter.writeHeader(blm, header);
+
+	final int frameCount = blm.frames.size();
+	final int frameSize = blm.header.width * blm.header.height;
+	final int framesPerChunk = Math.max(1, Math.min(
+		BLMWriter.KEYFRAME_INTERVAL, CHUNK_PIXELS
+			/ Math.max(1, frameSize)));
+	final List<Long> starts = new ArrayList<Long>();
+	long time = 0;
+	final List<Integer> firstFrames = new ArrayList<Integer>();
+	final List<byte[]> chunks = new ArrayList<byte[]>();
+	final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+	try {
+	    for (int first = 0; first < frameCount; first += framesPerChunk) {
+		final int last = Math.min(frameCount, first + framesPerChunk);
+		starts.add(time);
+		for (int i = first; i < last; i++) {
+		    final BLM.Frame frame = blm.frames.get(i);
+		    time += frame.duration;
+		    if (frame.pixels.length != frameSize)
+			throw new IOException("frame has " + frame.pixels.length
+				+ " pixels instead of " + frameSize);
+		}
+		final byte[] whole = encode(blm, first, last, ENCODING_WHOLE,
+			deflater);
+		final byte[] delta = encode(blm, first, last, ENCODING_DELTA,
+			deflater);
+		firstFrames.add(first);
+		chunks.add(delta.length < whole.length ? delta : whole);
+	    }
+	} finally {
+	    deflater.end();
+	}
+	firstFrames.add(frameCount);
+	starts.add(time);
+
+	final int[] first = new int[firstFrames.size()];
+	final long[] start = new long[starts.size()];
+	for (int i = 0; i < first.length; i++) {
+	    first[i] = firstFrames.get(i);
+	    start[i] = starts.get(i);
+	}
+	return new FrameChunks(MovieHash.digest(BBMZParser.toBBMZ(blm)), header
+		.toByteArray(), start, first, chunks.toArray(new byte[chunks
+		.size()][]));
+    }
+
+    private static byte[] encode(BLM blm, int first, int last,
+	    byte encoding, Deflater deflater) throws IOException {
+	deflater.reset();
+	final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+	chunk.write(encoding);
+	final DeflaterOutputStream deflated = new DeflaterOutputStream(chunk,
+		deflater);
+	final DataOutputStream out = new DataOutputStream(deflated);
+	byte[] previous = null;
+	for (int i = first; i < last; i++) {
+	    final byte[] pixels = blm.frames.get(i).pixels;
+	    if (null == previous || encoding == ENCODING_WHOLE)
+		out.write(pixels);
+	    else
+		FrameDelta.write(out, previous, pixels);
+	    previous = pixels;
+	}
+	out.flush();
+	deflated.finish();
+	return chunk.toByteArray();
+    }
+
+    /**
+     * Decodes a chunk into the pixels of its frames.
+     * 
+     * @return the pixels of every frame of the chunk
+     */
+    public static byte[][] decode(byte[] chunk, int frameCount, int frameSize)
+	    throws IOException {
+	if (chunk.length == 0)
+	    throw new IOException("empty chunk");
+	final byte encoding = chunk[0];
+	if (encoding != ENCODING_WHOLE && encoding != ENCODING_DELTA)
+	    throw new IOException("unknown chunk encoding " + encoding);
+	final byte[][] frames = new byte[frameCount][];
+	final DataInputStream in = new DataInputStream(new InflaterInputStream(
+		new ByteArrayInputStream(chunk, 1, chunk.length - 1)));
+	try {
+	    for (int i = 0; i < frameCount; i++) {
+		frames[i] = new byte[frameSize];
+		if (i == 0 || encoding == ENCODING_WHOLE)
+		    in.readFully(frames[i]);
+		else
+		    FrameDelta.read(in, frames[i - 1], frames[i]);
+	    }
+	} finally {
+	    in.close();
+	}
+	return frames;
+    }
+
+    /**
+     * @return the {@link MovieHash} of the movie as
+     *         {@link BBMZParser#toBBMZ(BLM)} writes it, which is what a player
+     *         keeps once all chunks arrived
+     */
+    public byte[] getHash() {
+	return hash;
+    }
+
+    /**
+     * @return the movie's header and frame durations in the flat format
+     */
+    public byte[] getHeader() {
+	return header;
+    }
+
+    public int getChunkCount() {
+	return chunks.length;
+    }
+
+    public byte[] getChunk(int chunk) {
+	return chunks[chunk];
+    }
+
+    public int getFirstFrame(int chunk) {
+	return firstFrames[chunk];
+    }
+
+    public int getFrameCount(int chunk) {
+	return firstFrames[chunk + 1] - firstFrames[chunk];
+    }
+
+    /**
+     * @return the chunk holding the frame shown <code>time</code>
+     *         milliseconds after the movie started, taking looping into
+     *         account
+     */
+    public int chunkAt(long time) {
+	final long duration = starts[chunks.length];
+	if (duration <= 0)
+	    return 0;
+	time %= duration;
+	if (time < 0)
+	    time += duration;
+	// the last chunk starting no later than time
+	int low = 0, high = chunks.length - 1;
+	while (low < high) {
+	    final int middle = (low + high + 1) >>> 1;
+	    if (starts[middle] <= time)
+		low = middle;
+	    else
+		high = middle - 1;
+	}
+	return low;
+    }
+
+    /**
+     * @return compressed bytes held
+     */
+    public long getSize() {
+	return size;
+    }
+}
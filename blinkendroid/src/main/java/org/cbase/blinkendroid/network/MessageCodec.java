@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the blinkendroid protocol.
+ * <p>
+ * Every message is an envelope of a 4 byte length followed by that many
+ * bytes: the protocol id, the command and the command's fields, all big
+ * endian and of their exact primitive size. Bulk data such as a movie is not
+ * part of the envelope; its size is announced in a field and the raw bytes
+ * directly follow the message.
+ */
+public final class MessageCodec {
+
+    public static final int LENGTH_SIZE = 4;
+    public static final int MIN_MESSAGE_SIZE = 8;
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    // larger attachments are refused rather than allocated
+    public static final int MAX_ATTACHMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final BufferPool POOL = new BufferPool(256, 64);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * @return a pooled buffer with room for the length, positioned after proto
+     *         and command
+     */
+    public static ByteBuffer begin(int proto, int command) {
+	final ByteBuffer message = POOL.acquire();
+	message.position(LENGTH_SIZE);
+	message.putInt(proto);
+	message.putInt(command);
+	return message;
+    }
+
+    /**
+     * Fills in the length and flips the buffer for writing.
+     */
+    public static ByteBuffer finish(ByteBuffer message) {
+	message.putInt(0, message.position() - LENGTH_SIZE);
+	message.flip();
+	return message;
+    }
+
+    public static void release(ByteBuffer message) {
+	POOL.release(message);
+    }
+
+    /**
+     * @throws IOException
+     *             if the length can not be the start of a valid message,
+     *             which means the stream is out of sync
+     */
+    public static int checkLength(int length) throws IOException {
+	if (length < MIN_MESSAGE_SIZE || length > MAX_MESSAGE_SIZE)
+	    throw new IOException("invalid message length " + length);
+	return length;
+    }
+
+    /**
+     * @throws IOException
+     *             if no attachment can be that long, which means the sender
+     *             is broken or hostile
+     */
+    public static int checkAttachmentLength(long length) throws IOException {
+	if (length < 0 || length > MAX_ATTACHMENT_SIZE)
+	    throw new IOException("invalid attachment length " + length);
+	return (int) length;
+    }
+
+    /**
+     * Reads exactly <code>length</code> bytes, a single read may return less
+     * on a slow network.
+     */
+    public static void readFully(InputStream in, byte[] buffer, int offset,
+	    int length) throws IOException {
+	while (length > 0) {
+	    final int n = in.read(buffer, offset, length);
+	    if (n == -1)
+		throw new EOFException();
+	    offset += n;
+	    length -= n;
+	}
+    }
+
+    /**
+     * Reads the next message into <code>message</code>, growing it if needed.
+     *
+     * @return the buffer holding the message, flipped and positioned at the
+     *         protocol id
+     */
+    public static ByteBuffer read(InputStream in, ByteBuffer message)
+	    throws IOException {
+	message.clear();
+	readFully(in, message.array(), 0, LENGTH_SIZE);
+	final int length = checkLength(message.getInt(0));
+	if (message.capacity() < length)
+	    message = ByteBuffer.allocate(length);
+	readFully(in, message.array(), 0, length);
+	message.position(0);
+	message.limit(length);
+	return message;
+    }
+
+    /**
+     * Reads a bulk attachment into a buffer of its own.
+     */
+    public static ByteBuffer readAttachment(InputStream in, long length)
+	    throws IOException {
+	final byte[] attachment = new byte[checkAttachmentLength(length)];
+	readFully(in, attachment, 0, attachment.length);
+	return ByteBuffer.wrap(attachment);
+    }
+
+    /**
+     * Reads past an attachment that is of no use any more.
+     */
+    public static void skipAttachment(InputStream in, long length)
+	    throws IOException {
+	checkAttachmentLength(length);
+	final byte[] buffer = new byte[(int) Math.min(length, 8192)];
+	while (length > 0) {
+	    final int n = in.read(buffer, 0, (int) Math.min(length,
+		    buffer.length));
+	    if (n == -1)
+		throw new EOFException();
+	    length -= n;
+	}
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Movies a player has received before, kept on disk under their
+ * {@link MovieHash}. When the total size grows beyond the budget, the movies
+ * that were played least recently are deleted.
+ */
+public class MovieDiskCache {
+
+    private static final String SUFFIX = ".bbmz";
+
+    private final File dir;
+    private final long budget;
+
+    public MovieDiskCache(File dir, long budget) {
+	this.dir = dir;
+	this.budget = budget;
+	dir.mkdirs();
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+	return file(hash).exists();
+    }
+
+    /**
+     * @return the content of the movie, or null if it is not cached
+     */
+    public synchronized byte[] get(byte[] hash) {
+	final File file = file(hash);
+	if (!file.exists())
+	    return null;
+	try {
+	    final byte[] content = new byte[(int) file.length()];
+	    final FileInputStream in = new FileInputStream(file);
+	    try {
+		MessageCodec.readFully(in, content, 0, content.length);
+	    } finally {
+		in.close();
+	    }
+	    // the modification time is the recency of use
+	    file.setLastModified(System.currentTimeMillis());
+	    return content;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("MovieDiskCache could not read " + file);
+	    file.delete();
+	    return null;
+	}
+    }
+
+    /**
+     * Stores a movie, unless it does not match its hash.
+     */
+    public synchronized void put(byte[] hash, byte[] content) {
+	if (content.length > budget
+		|| !Arrays.equals(hash, MovieHash.digest(content)))
+	    return;
+	final File file = file(hash);
+	final File tmp = new File(dir, file.getName() + ".tmp");
+	try {
+	    final FileOutputStream out = new FileOutputStream(tmp);
+	    try {
+		out.write(content);
+	    } finally {
+		out.close();
+	    }
+	    if (!tmp.renameTo(file))
+		throw new IOException("could not rename " + tmp);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("MovieDiskCache could not write " + file);
+	    tmp.delete();
+	    return;
+	}
+	evict();
+    }
+
+    /**
+     * Starts storing a movie while it is being read from <code>in</code>, so
+     * it never has to be held in memory as a whole.
+     *
+     * @return a stream that writes everything read from it through to the
+     *         cache, or null if the movie can not be stored
+     */
+    public Recording record(byte[] hash, long length, InputStream in) {
+	if (length > budget)
+	    return null;
+	final File file = file(hash);
+	try {
+	    // unique, the same movie may arrive on two connections at once
+	    final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+	    return new Recording(in, hash, file, tmp);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("MovieDiskCache could not write " + file);
+	    return null;
+	}
+    }
+
+    private synchronized void store(File tmp, File file) {
+	if (!tmp.renameTo(file)) {
+	    System.out.println("MovieDiskCache could not rename " + tmp);
+	    tmp.delete();
+	    return;
+	}
+	evict();
+    }
+
+    private void evict() {
+	final File[] files = dir.listFiles();
+	if (null == files)
+	    return;
+	long size = 0;
+	for (File file : files)
+	    size += file.length();
+	if (size <= budget)
+	    return;
+	Arrays.sort(files, new Comparator<File>() {
+	    public int compare(File a, File b) {
+		final long d = a.lastModified() - b.lastModified();
+		return d < 0 ? -1 : d > 0 ? 1 : 0;
+	    }
+	});
+	for (int i = 0; i < files.length && size > budget; i++) {
+	    System.out.println("MovieDiskCache evict " + files[i].getName());
+	    size -= files[i].length();
+	    files[i].delete();
+	}
+    }
+
+    private File file(byte[] hash) {
+	return new File(dir, MovieHash.toHex(hash) + SUFFIX);
+    }
+
+    /**
+     * A movie on its way into the cache. Once it has been read completely,
+     * {@link #finish()} stores it if it matches its hash.
+     */
+    public class Recording extends FilterInputStream {
+
+	private final byte[] hash;
+	private final File file;
+	private final File tmp;
+	private final FileOutputStream out;
+	private final MessageDigest digest = MovieHash.newDigest();
+	private boolean failed;
+	private boolean finished;
+
+	Recording(InputStream in, byte[] hash, File file, File tmp)
+		throws IOException {
+	    super(in);
+	    this.hash = hash;
+	    this.file = file;
+	    this.tmp = tmp;
+	    this.out = new FileOutputStream(tmp);
+	}
+
+	@Override
+	public int read() throws IOException {
+	    final int b = in.read();
+	    if (b != -1)
+		record(new byte[] { (byte) b }, 0, 1);
+	    return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    final int n = in.read(b, off, len);
+	    if (n > 0)
+		record(b, off, n);
+	    return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+	    // skipped bytes are part of the movie as well
+	    final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+	    final int read = read(buffer, 0, buffer.length);
+	    return read == -1 ? 0 : read;
+	}
+
+	@Override
+	public boolean markSupported() {
+	    return false;
+	}
+
+	/**
+	 * Stores the movie, unless writing it failed or it does not match its
+	 * hash. The underlying stream stays open.
+	 */
+	public void finish() {
+	    if (finished)
+		return;
+	    finished = true;
+	    try {
+		out.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+		failed = true;
+	    }
+	    if (failed || !Arrays.equals(hash, digest.digest())) {
+		System.out.println("MovieDiskCache dropped " + file.getName());
+		tmp.delete();
+		return;
+	    }
+	    store(tmp, file);
+	}
+
+	/**
+	 * Drops the movie, for when it could not be read. Does nothing once the
+	 * recording is finished.
+	 */
+	public void abort() {
+	    if (finished)
+		return;
+	    finished = true;
+	    try {
+		out.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	    tmp.delete();
+	}
+
+	private void record(byte[] b, int off, int len) {
+	    digest.update(b, off, len);
+	    if (failed)
+		return;
+	    try {
+		out.write(b, off, len);
+	    } catch (IOException e) {
+		// the movie is still played, it is just not kept
+		e.printStackTrace();
+		failed = true;
+	    }
+	}
+    }
+}
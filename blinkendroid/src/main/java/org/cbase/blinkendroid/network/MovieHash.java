@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies a movie by the MD5 digest of its .bbmz content, so server and
+ * player agree on a movie no matter what it is called on either side.
+ */
+public final class MovieHash {
+
+    public static final int SIZE = 16;
+
+    private MovieHash() {
+    }
+
+    public static byte[] digest(File file) throws IOException {
+	final MessageDigest digest = newDigest();
+	final FileInputStream in = new FileInputStream(file);
+	try {
+	    final byte[] buffer = new byte[8192];
+	    int n;
+	    while ((n = in.read(buffer)) != -1)
+		digest.update(buffer, 0, n);
+	} finally {
+	    in.close();
+	}
+	return digest.digest();
+    }
+
+    public static byte[] digest(byte[] content) {
+	return newDigest().digest(content);
+    }
+
+    public static String toHex(byte[] hash) {
+	final StringBuilder hex = new StringBuilder(hash.length * 2);
+	for (byte b : hash) {
+	    hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+	    hex.append(Character.forDigit(b & 0xf, 16));
+	}
+	return hex.toString();
+    }
+
+    static MessageDigest newDigest() {
+	try {
+	    return MessageDigest.getInstance("MD5");
+	} catch (NoSuchAlgorithmException e) {
+	    // every Java platform is required to support MD5
+	    throw new RuntimeException(e);
+	}
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * A player connection served by the {@link NioTransport} selector loop.
+ * Outgoing data is queued and written whenever the channel becomes writable,
+ * so a slow player never blocks the thread that sends to it.
+ * <p>
+ * Small messages without an attachment go in a lane of their own and are
+ * written before any bulk data still waiting, as soon as the message being
+ * written is complete. Time and control messages so never wait for a movie.
+ */
+public class NioConnection {
+
+    // how long close() leaves the selector loop to write what is queued
+    private static final long CLOSE_TIMEOUT = 500;
+
+    private final NioTransport transport;
+    private final SocketChannel channel;
+    private final InetAddress inetAddress;
+    // ByteBuffers, FileRegions, Attachments and Runnables, in sending order
+    private final LinkedList<Object> outbound = new LinkedList<Object>();
+    // time stamps written ahead of the outbound data, which they do not
+    // depend on
+    private final LinkedList<ByteBuffer> urgent = new LinkedList<ByteBuffer>();
+    // partly written, taken from one of the queues
+    private Object current;
+    private ByteBuffer inbound = ByteBuffer.allocate(1024);
+    private SelectionKey key;
+    private AbstractBlinkendroidProtocol protocol;
+    volatile private boolean open = true;
+    // set by close(), guarded by outbound
+    private boolean closing;
+    private long closeDeadline;
+
+    NioConnection(NioTransport transport, SocketChannel channel) {
+	this.transport = transport;
+	this.channel = channel;
+	this.inetAddress = channel.socket().getInetAddress();
+    }
+
+    void register(Selector selector) throws IOException {
+	key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    void setProtocol(AbstractBlinkendroidProtocol protocol) {
+	this.protocol = protocol;
+    }
+
+    Socket getSocket() {
+	return channel.socket();
+    }
+
+    /**
+     * Queues a message after everything queued so far.
+     */
+    void enqueue(ByteBuffer message) {
+	if (!open) {
+	    discard(message);
+	    return;
+	}
+	synchronized (outbound) {
+	    outbound.add(message);
+	}
+	transport.requestInterestUpdate(this);
+    }
+
+    /**
+     * Queues a message ahead of all bulk data. Only for messages whose order
+     * does not matter, such as time stamps.
+     */
+    void enqueueUrgent(ByteBuffer message) {
+	if (!open) {
+	    discard(message);
+	    return;
+	}
+	synchronized (outbound) {
+	    urgent.add(message);
+	}
+	transport.requestInterestUpdate(this);
+    }
+
+    /**
+     * Queues a message and its attachment, a ByteBuffer or a
+     * {@link FileRegion}. Nothing is written between the two.
+     */
+    void enqueue(ByteBuffer message, Object attachment) {
+	if (!open) {
+	    discard(message);
+	    discard(attachment);
+	    return;
+	}
+	synchronized (outbound) {
+	    outbound.add(message);
+	    outbound.add(new Attachment(attachment));
+	}
+	transport.requestInterestUpdate(this);
+    }
+
+    /**
+     * Runs the task once everything queued so far has been written, or when
+     * the connection is closed before that.
+     */
+    void whenSent(Runnable task) {
+	if (!open) {
+	    task.run();
+	    return;
+	}
+	synchronized (outbound) {
+	    outbound.add(task);
+	}
+	transport.requestInterestUpdate(this);
+    }
+
+    void opened() {
+	if (null != protocol)
+	    protocol.connectionOpened(inetAddress);
+    }
+
+    void updateInterest() {
+	if (null == key || !key.isValid())
+	    return;
+	final boolean pending;
+	final boolean closing;
+	final boolean expired;
+	synchronized (outbound) {
+	    pending = null != current || !urgent.isEmpty()
+		    || !outbound.isEmpty();
+	    closing = this.closing;
+	    expired = closing
+		    && System.currentTimeMillis() >= closeDeadline;
+	}
+	if (closing && (!pending || expired)) {
+	    if (pending)
+		System.out.println("NioConnection gave up final flush "
+			+ inetAddress);
+	    discardOutbound();
+	    cancel();
+	    return;
+	}
+	if (closing)
+	    transport.awaitClose(this);
+	key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+		: SelectionKey.OP_READ);
+    }
+
+    void onWritable() {
+	try {
+	    synchronized (outbound) {
+		if (!flush())
+		    return; // socket buffer full, wait for next OP_WRITE
+	    }
+	    updateInterest();
+	} catch (IOException e) {
+	    System.out.println("NioConnection write failed " + inetAddress);
+	    closed();
+	}
+    }
+
+    void onReadable() {
+	try {
+	    if (channel.read(inbound) == -1) {
+		closed();
+		return;
+	    }
+	    inbound.flip();
+	    decode();
+	    inbound.compact();
+	} catch (IOException e) {
+	    System.out.println("NioConnection read failed " + inetAddress);
+	    closed();
+	}
+    }
+
+    /**
+     * Dispatches every complete message in the inbound buffer. The buffer's
+     * limit is narrowed to each message in turn instead of slicing it.
+     */
+    private void decode() throws IOException {
+	while (inbound.remaining() >= MessageCodec.LENGTH_SIZE) {
+	    final int start = inbound.position();
+	    final int length = MessageCodec.checkLength(inbound.getInt(start));
+	    final int end = start + MessageCodec.LENGTH_SIZE + length;
+	    if (end > inbound.limit()) {
+		if (MessageCodec.LENGTH_SIZE + length > inbound.capacity())
+		    grow(MessageCodec.LENGTH_SIZE + length);
+		return;
+	    }
+	    final int limit = inbound.limit();
+	    inbound.position(start + MessageCodec.LENGTH_SIZE);
+	    inbound.limit(end);
+	    if (null != protocol)
+		protocol.dispatch(inbound);
+	    inbound.limit(limit);
+	    inbound.position(end);
+	}
+    }
+
+    private void grow(int capacity) {
+	final ByteBuffer bigger = ByteBuffer.allocate(capacity);
+	bigger.put(inbound);
+	bigger.flip();
+	inbound = bigger;
+    }
+
+    /**
+     * Called when the remote side went away or the connection failed. Also
+     * ends a close that is still flushing.
+     */
+    void closed() {
+	final boolean wasOpen = open;
+	open = false;
+	cancel();
+	discardOutbound();
+	if (wasOpen && null != protocol)
+	    protocol.connectionClosed(inetAddress);
+    }
+
+    /**
+     * Closes the channel once the selector loop has written out what is still
+     * queued, or after {@link #CLOSE_TIMEOUT} ms at the latest. Returns right
+     * away.
+     */
+    public void close() {
+	if (!open)
+	    return;
+	open = false;
+	synchronized (outbound) {
+	    closing = true;
+	    closeDeadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+	}
+	if (transport.isRunning()) {
+	    transport.requestInterestUpdate(this);
+	    return;
+	}
+	// no selector loop left to finish it, write what fits right now
+	try {
+	    synchronized (outbound) {
+		flush();
+	    }
+	} catch (IOException e) {
+	    System.out.println("NioConnection final flush failed "
+		    + inetAddress);
+	}
+	discardOutbound();
+	cancel();
+    }
+
+    /**
+     * Writes until the queues are empty or the socket buffer is full. Must
+     * hold the outbound lock.
+     *
+     * @return true if everything has been written
+     */
+    private boolean flush() throws IOException {
+	while (true) {
+	    if (null == current) {
+		// an urgent message must not split a message from its
+		// attachment
+		if (!urgent.isEmpty()
+			&& !(outbound.peek() instanceof Attachment))
+		    current = urgent.removeFirst();
+		else if (!outbound.isEmpty())
+		    current = outbound.removeFirst();
+		else
+		    return true;
+	    }
+	    if (!write(current))
+		return false;
+	    final Object written = current;
+	    current = null;
+	    discard(written);
+	}
+    }
+
+    /**
+     * @return true if the data has been written completely
+     */
+    private boolean write(Object data) throws IOException {
+	if (data instanceof Attachment)
+	    data = ((Attachment) data).data;
+	if (data instanceof Runnable)
+	    return true; // run by discard
+	if (data instanceof FileRegion)
+	    return ((FileRegion) data).transferTo(channel);
+	final ByteBuffer buffer = (ByteBuffer) data;
+	channel.write(buffer);
+	return !buffer.hasRemaining();
+    }
+
+    private void discard(Object data) {
+	if (data instanceof Attachment)
+	    data = ((Attachment) data).data;
+	if (data instanceof Runnable)
+	    ((Runnable) data).run();
+	else if (data instanceof FileRegion)
+	    ((FileRegion) data).close();
+	else
+	    MessageCodec.release((ByteBuffer) data);
+    }
+
+    private void discardOutbound() {
+	synchronized (outbound) {
+	    if (null != current)
+		discard(current);
+	    current = null;
+	    for (Object data : urgent)
+		discard(data);
+	    urgent.clear();
+	    for (Object data : outbound)
+		discard(data);
+	    outbound.clear();
+	}
+    }
+
+    private void cancel() {
+	if (null != key)
+	    key.cancel();
+	try {
+	    channel.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+    }
+
+    public boolean isOpen() {
+	return open;
+    }
+
+    /**
+     * Marks the data that follows a message in the same frame.
+     */
+    private static class Attachment {
+
+	final Object data;
+
+	Attachment(Object data) {
+	    this.data = data;
+	}
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking server transport. A single selector loop accepts players and
+ * serves all of their {@link NioConnection}s, instead of one receiver thread
+ * per connected socket.
+ */
+public class NioTransport {
+
+    public interface AcceptListener {
+
+	void accepted(NioConnection connection) throws IOException;
+    }
+
+    private final Selector selector;
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+    private final Queue<NioConnection> interestChanges = new ConcurrentLinkedQueue<NioConnection>();
+    // closed connections still flushing, only touched by the selector loop
+    private final Set<NioConnection> closing = new HashSet<NioConnection>();
+    volatile private boolean running = true;
+
+    // how often a flushing connection checks its close deadline
+    private static final long CLOSE_POLL = 100;
+
+    public NioTransport(int port, AcceptListener acceptListener)
+	    throws IOException {
+	selector = Selector.open();
+	listen(port, acceptListener);
+    }
+
+    /**
+     * Accepts connections on another port as well. Must be called before
+     * {@link #loop()}.
+     * 
+     * @param port
+     *            0 for any free port
+     * @return the port
+     */
+    public int listen(int port, AcceptListener acceptListener)
+	    throws IOException {
+	final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+	serverChannel.socket().setReuseAddress(true);
+	serverChannel.socket().bind(new InetSocketAddress(port));
+	serverChannel.configureBlocking(false);
+	serverChannel.register(selector, SelectionKey.OP_ACCEPT, acceptListener);
+	serverChannels.add(serverChannel);
+	return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Runs the selector loop on the calling thread until {@link #shutdown()}
+     * is called.
+     */
+    public void loop() {
+	System.out.println("NioTransport loop started");
+	while (running) {
+	    try {
+		selector.select(closing.isEmpty() ? 0 : CLOSE_POLL);
+	    } catch (IOException e) {
+		e.printStackTrace();
+		System.out.println("NioTransport select failed");
+		break;
+	    }
+	    if (!running) // fast exit
+		break;
+
+	    NioConnection changed;
+	    while ((changed = interestChanges.poll()) != null)
+		changed.updateInterest();
+	    if (!closing.isEmpty()) {
+		// re-added by updateInterest while still flushing
+		final List<NioConnection> flushing = new ArrayList<NioConnection>(
+			closing);
+		closing.clear();
+		for (NioConnection connection : flushing)
+		    connection.updateInterest();
+	    }
+
+	    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+	    while (keys.hasNext()) {
+		final SelectionKey key = keys.next();
+		keys.remove();
+		if (!key.isValid())
+		    continue;
+		if (key.isAcceptable()) {
+		    accept((ServerSocketChannel) key.channel(),
+			    (AcceptListener) key.attachment());
+		    continue;
+		}
+		final NioConnection connection = (NioConnection) key
+			.attachment();
+		try {
+		    if (key.isReadable())
+			connection.onReadable();
+		    if (key.isValid() && key.isWritable())
+			connection.onWritable();
+		} catch (RuntimeException e) {
+		    // a broken message must not take the other players down
+		    e.printStackTrace();
+		    System.out.println("NioTransport dropping connection "
+			    + connection.getSocket().getInetAddress());
+		    connection.closed();
+		}
+	    }
+	}
+	for (NioConnection connection : closing)
+	    connection.closed();
+	closing.clear();
+	System.out.println("NioTransport loop ended");
+    }
+
+    private void accept(ServerSocketChannel serverChannel,
+	    AcceptListener acceptListener) {
+	try {
+	    final SocketChannel channel = serverChannel.accept();
+	    if (null == channel)
+		return;
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(true);
+	    final NioConnection connection = new NioConnection(this, channel);
+	    connection.register(selector);
+	    acceptListener.accepted(connection);
+	    connection.opened();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("NioTransport could not accept");
+	}
+    }
+
+    /**
+     * Asks the selector loop to re-evaluate the interest set of a connection.
+     * May be called from any thread.
+     */
+    void requestInterestUpdate(NioConnection connection) {
+	interestChanges.add(connection);
+	selector.wakeup();
+    }
+
+    /**
+     * Keeps checking a closed connection until it has finished flushing.
+     * Selector loop only.
+     */
+    void awaitClose(NioConnection connection) {
+	closing.add(connection);
+    }
+
+    boolean isRunning() {
+	return running;
+    }
+
+    public void shutdown() {
+	System.out.println("NioTransport.shutdown() initiated");
+	running = false;
+	selector.wakeup();
+    }
+
+    public void close() {
+	try {
+	    for (ServerSocketChannel serverChannel : serverChannels)
+		serverChannel.close();
+	    selector.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("NioTransport close failed");
+	}
+    }
+}
@@ -0,0 +1,14 @@
+package org.cbase.blinkendroid.network;
+
+public interface TransferListener {
+
+    /**
+     * Called after every chunk of a bulk transfer.
+     * 
+     * @param transferred
+     *            bytes sent so far
+     * @param total
+     *            bytes of the whole transfer
+     */
+    void transferProgress(long transferred, long total);
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.network;
+
+/**
+ * Decides when a movie may be sent to a player, so not every player that
+ * joins at once gets its movie at the same time.
+ */
+public interface UploadScheduler {
+
+    /**
+     * Asks to send a movie to a player. The scheduler runs the upload when
+     * it is its turn, on a thread of its own. A player waiting for a movie
+     * that asks again replaces its earlier upload.
+     * 
+     * @param size
+     *            bytes of the movie
+     */
+    void submit(BlinkendroidServerProtocol player, long size, Runnable upload);
+
+    /**
+     * Told once the movie of a running upload has left, or could not be sent.
+     */
+    void finished(BlinkendroidServerProtocol player);
+}
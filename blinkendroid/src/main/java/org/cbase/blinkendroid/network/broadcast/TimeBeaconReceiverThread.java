@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network.broadcast;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import org.cbase.blinkendroid.Constants;
+import org.cbase.blinkendroid.network.BlinkendroidListener;
+
+import android.util.Log;
+
+/**
+ * Receives the time beacons of the server a player is connected to and
+ * hands them to {@link BlinkendroidListener#serverTime(long)}.
+ */
+public class TimeBeaconReceiverThread extends Thread {
+
+    // a sequence this far behind the last one means the server restarted
+    private static final long SEQUENCE_RESTART_GAP = 100;
+
+    private final InetAddress server;
+    private final BlinkendroidListener listener;
+    volatile private boolean running = true;
+    private MulticastSocket socket;
+    private long lastSequence = 0;
+
+    public TimeBeaconReceiverThread(InetAddress server,
+	    BlinkendroidListener listener) {
+	this.server = server;
+	this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+	try {
+	    socket = new MulticastSocket(null);
+	    socket.setReuseAddress(true);
+	    socket.bind(new InetSocketAddress(Constants.TIME_BEACON_PORT));
+	    if (Constants.TIME_BEACON_MULTICAST)
+		socket.joinGroup(InetAddress.getByName(Constants.MULTICAST_GROUP));
+
+	    final byte[] buf = new byte[TimeBeaconSender.PACKET_SIZE];
+	    final ByteBuffer data = ByteBuffer.wrap(buf);
+	    final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+	    while (running) {
+		packet.setLength(buf.length);
+		receive(packet);
+
+		if (!running) // fast exit
+		    break;
+
+		if (packet.getLength() != TimeBeaconSender.PACKET_SIZE
+			|| !server.equals(packet.getAddress()))
+		    continue;
+		data.clear();
+		if (data.getInt() != TimeBeaconSender.MAGIC)
+		    continue;
+		final long sequence = data.getLong();
+		final long serverTime = data.getLong();
+		// drop duplicates and beacons overtaken by newer ones
+		if (sequence <= lastSequence
+			&& lastSequence - sequence < SEQUENCE_RESTART_GAP)
+		    continue;
+		lastSequence = sequence;
+		listener.serverTime(serverTime);
+	    }
+	    socket.close();
+	    Log.d(Constants.LOG_TAG,
+		    "TimeBeaconReceiverThread: shutdown complete");
+	} catch (final IOException x) {
+	    Log.e(Constants.LOG_TAG, "problem receiving time beacon", x);
+	}
+    }
+
+    private void receive(final DatagramPacket packet) throws IOException {
+	try {
+	    socket.receive(packet);
+	} catch (final SocketException x) {
+	    // swallow, this is expected when being interrupted by
+	    // socket.close()
+	}
+    }
+
+    public void shutdown() {
+	Log.d(Constants.LOG_TAG, "TimeBeaconReceiverThread: initiating shutdown");
+	running = false;
+	if (null != socket)
+	    socket.close(); // interrupt
+	try {
+	    join();
+	} catch (final InterruptedException x) {
+	    throw new RuntimeException(x);
+	}
+    }
+}
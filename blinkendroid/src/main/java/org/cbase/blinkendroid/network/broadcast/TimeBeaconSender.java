@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.network.broadcast;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.cbase.blinkendroid.Constants;
+
+import android.util.Log;
+
+/**
+ * Sends the global time to the whole wall with a single datagram per tick,
+ * instead of a TCP message to every player.
+ */
+public class TimeBeaconSender {
+
+    public static final int MAGIC = 0x424c4b54;
+    public static final int PACKET_SIZE = 20;
+
+    private final DatagramSocket socket;
+    private final byte[] buffer = new byte[PACKET_SIZE];
+    private final ByteBuffer packetData = ByteBuffer.wrap(buffer);
+    private final DatagramPacket packet;
+    private long sequence = 0;
+
+    public TimeBeaconSender() throws IOException {
+	final InetAddress group = InetAddress
+		.getByName(Constants.TIME_BEACON_MULTICAST ? Constants.MULTICAST_GROUP
+			: "255.255.255.255");
+	socket = new DatagramSocket();
+	socket.setBroadcast(true);
+	packet = new DatagramPacket(buffer, PACKET_SIZE, group,
+		Constants.TIME_BEACON_PORT);
+	Log.i(Constants.LOG_TAG, "TimeBeaconSender to " + group);
+    }
+
+    /**
+     * Sends the next beacon. Only to be called from one thread.
+     */
+    public void send(long serverTime) {
+	packetData.clear();
+	packetData.putInt(MAGIC);
+	packetData.putLong(++sequence);
+	packetData.putLong(serverTime);
+	try {
+	    socket.send(packet);
+	} catch (IOException x) {
+	    Log.w(Constants.LOG_TAG, "TimeBeaconSender: problem sending", x);
+	}
+    }
+
+    public void close() {
+	Log.d(Constants.LOG_TAG, "TimeBeaconSender: close");
+	socket.close();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.player;
+
+import org.cbase.blinkendroid.player.bml.BLMHeader;
+import org.cbase.blinkendroid.player.bml.BLMPalette;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Draws a frame as one bitmap scaled up to the view, instead of one
+ * rectangle per pixel. The gaps between the pixels come from a grid mask
+ * drawn on top, which is only rebuilt when the view or the clipping changes.
+ * Nothing is allocated while the movie plays.
+ */
+class BitmapRenderer {
+
+    private final int padding;
+    private final Paint bitmapPaint = new Paint();
+    private final Paint gridPaint = new Paint();
+    private final Rect source = new Rect();
+    private final RectF target = new RectF();
+
+    private Bitmap bitmap;
+    private int[] argb;
+    private Bitmap grid;
+    private int gridColumns, gridRows;
+
+    BitmapRenderer(int padding) {
+	this.padding = padding;
+	// nearest neighbour, so pixels stay sharp squares
+	bitmapPaint.setFilterBitmap(false);
+	gridPaint.setColor(Color.BLACK);
+    }
+
+    /**
+     * Draws the pixels from <code>x0,y0</code> inclusive to
+     * <code>x1,y1</code> exclusive over the whole view.
+     */
+    void draw(Canvas canvas, byte[] pixels, BLMHeader header, int x0,
+	    int y0, int x1, int y1, int viewWidth, int viewHeight) {
+	final int width = x1 - x0;
+	final int height = y1 - y0;
+	if (width <= 0 || height <= 0 || viewWidth <= 0 || viewHeight <= 0)
+	    return;
+	ensureBitmap(width, height);
+
+	final int[] palette = BLMPalette.argb(header);
+	int i = 0;
+	for (int y = y0; y < y1; y++) {
+	    final int row = y * header.width;
+	    for (int x = x0; x < x1; x++)
+		argb[i++] = palette[pixels[row + x] & 0xff];
+	}
+	bitmap.setPixels(argb, 0, width, 0, 0, width, height);
+
+	source.set(0, 0, width, height);
+	target.set(0, 0, viewWidth, viewHeight);
+	canvas.drawBitmap(bitmap, source, target, bitmapPaint);
+
+	if (padding > 0) {
+	    ensureGrid(width, height, viewWidth, viewHeight);
+	    canvas.drawBitmap(grid, 0, 0, gridPaint);
+	}
+    }
+
+    private void ensureBitmap(int width, int height) {
+	if (null != bitmap && bitmap.getWidth() == width
+		&& bitmap.getHeight() == height)
+	    return;
+	if (null != bitmap)
+	    bitmap.recycle();
+	bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+	argb = new int[width * height];
+    }
+
+    /**
+     * The mask covers <code>padding</code> view pixels on either side of
+     * every border between two movie pixels, like the gaps the per pixel
+     * renderer leaves.
+     */
+    private void ensureGrid(int columns, int rows, int viewWidth,
+	    int viewHeight) {
+	if (null != grid && grid.getWidth() == viewWidth
+		&& grid.getHeight() == viewHeight && gridColumns == columns
+		&& gridRows == rows)
+	    return;
+	if (null != grid)
+	    grid.recycle();
+	grid = Bitmap.createBitmap(viewWidth, viewHeight, Bitmap.Config.ALPHA_8);
+	gridColumns = columns;
+	gridRows = rows;
+
+	final Canvas canvas = new Canvas(grid);
+	final Paint line = new Paint();
+	line.setColor(Color.BLACK);
+	final float pixelWidth = (float) viewWidth / columns;
+	final float pixelHeight = (float) viewHeight / rows;
+	for (int x = 0; x <= columns; x++)
+	    canvas.drawRect(pixelWidth * x - padding, 0, pixelWidth * x
+		    + padding, viewHeight, line);
+	for (int y = 0; y <= rows; y++)
+	    canvas.drawRect(0, pixelHeight * y - padding, viewWidth,
+		    pixelHeight * y + padding, line);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.player;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Keeps frames rendered at the size of the view, so a looping movie is
+ * rasterized once and every later round only copies the bitmap. The least
+ * recently used frames are dropped when the cache grows beyond its budget;
+ * their bitmaps are reused for the next frames.
+ */
+class FrameBitmapCache {
+
+    // the rendered frames are opaque, two bytes per pixel are enough
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+    private static final int BYTES_PER_PIXEL = 2;
+
+    private final long budget;
+    private final LinkedHashMap<Integer, Bitmap> bitmaps = new LinkedHashMap<Integer, Bitmap>(
+	    16, 0.75f, true);
+    private long size = 0;
+
+    FrameBitmapCache(long budget) {
+	this.budget = budget;
+    }
+
+    /**
+     * Caching only pays off if a whole round of the movie fits, otherwise
+     * every frame is evicted just before it is needed again.
+     */
+    boolean fits(int frameCount, int width, int height) {
+	return width > 0 && height > 0
+		&& (long) frameCount * bytes(width, height) <= budget;
+    }
+
+    /**
+     * @return the rendered frame, or null if it is not cached
+     */
+    Bitmap get(int frame) {
+	return bitmaps.get(frame);
+    }
+
+    /**
+     * @return a bitmap for the frame to be rendered into, with undefined
+     *         content
+     */
+    Bitmap create(int frame, int width, int height) {
+	final long bytes = bytes(width, height);
+	Bitmap bitmap = bitmaps.remove(frame);
+	if (null != bitmap)
+	    size -= bytes(bitmap.getWidth(), bitmap.getHeight());
+	final Iterator<Map.Entry<Integer, Bitmap>> i = bitmaps.entrySet()
+		.iterator();
+	while (size + bytes > budget && i.hasNext()) {
+	    final Bitmap eldest = i.next().getValue();
+	    i.remove();
+	    size -= bytes(eldest.getWidth(), eldest.getHeight());
+	    if (null == bitmap && eldest.getWidth() == width
+		    && eldest.getHeight() == height)
+		bitmap = eldest;
+	    else
+		eldest.recycle();
+	}
+	if (null != bitmap
+		&& (bitmap.getWidth() != width || bitmap.getHeight() != height)) {
+	    bitmap.recycle();
+	    bitmap = null;
+	}
+	if (null == bitmap)
+	    bitmap = Bitmap.createBitmap(width, height, CONFIG);
+	bitmaps.put(frame, bitmap);
+	size += bytes;
+	return bitmap;
+    }
+
+    void clear() {
+	for (Bitmap bitmap : bitmaps.values())
+	    bitmap.recycle();
+	bitmaps.clear();
+	size = 0;
+    }
+
+    private static long bytes(int width, int height) {
+	return (long) width * height * BYTES_PER_PIXEL;
+    }
+}
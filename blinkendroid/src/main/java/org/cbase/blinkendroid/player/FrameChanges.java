@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.player;
+
+import org.cbase.blinkendroid.player.bml.BLMHeader;
+
+/**
+ * For every frame, the bounding box of the pixels that differ from the frame
+ * before. The first frame is compared with the last one, as movies loop.
+ * Computed once when a movie is loaded, so the player repaints only what
+ * changed.
+ */
+public class FrameChanges {
+
+    private final int[] bounds;
+
+    private FrameChanges(int[] bounds) {
+	this.bounds = bounds;
+    }
+
+    /**
+     * @return changes that treat every frame as changed all over, for when
+     *         the frames are not known yet
+     */
+    public static FrameChanges whole(BLMHeader header, int frameCount) {
+	final int[] bounds = new int[frameCount * 4];
+	if (header.width > 0 && header.height > 0) {
+	    for (int f = 0; f < frameCount; f++) {
+		bounds[f * 4 + 2] = header.width;
+		bounds[f * 4 + 3] = header.height;
+	    }
+	}
+	return new FrameChanges(bounds);
+    }
+
+    public static FrameChanges compute(FrameStore frames) {
+	final int width = frames.getHeader().width;
+	final int height = frames.getHeader().height;
+	final int count = frames.getFrameCount();
+	final int[] bounds = new int[count * 4];
+	if (count == 0)
+	    return new FrameChanges(bounds);
+
+	byte[] previous = new byte[width * height];
+	byte[] current = new byte[width * height];
+	frames.getPixels(count - 1, previous);
+	for (int f = 0; f < count; f++) {
+	    frames.getPixels(f, current);
+	    int left = width, top = height, right = 0, bottom = 0;
+	    for (int y = 0; y < height; y++) {
+		final int row = y * width;
+		for (int x = 0; x < width; x++) {
+		    if (current[row + x] != previous[row + x]) {
+			if (x < left)
+			    left = x;
+			if (x >= right)
+			    right = x + 1;
+			if (y < top)
+			    top = y;
+			bottom = y + 1;
+		    }
+		}
+	    }
+	    if (right <= left) // unchanged
+		left = top = right = bottom = 0;
+	    bounds[f * 4] = left;
+	    bounds[f * 4 + 1] = top;
+	    bounds[f * 4 + 2] = right;
+	    bounds[f * 4 + 3] = bottom;
+	    final byte[] swap = previous;
+	    previous = current;
+	    current = swap;
+	}
+	return new FrameChanges(bounds);
+    }
+
+    /**
+     * @return true if the frame looks exactly like the one before
+     */
+    public boolean isUnchanged(int frame) {
+	return bounds[frame * 4 + 2] == 0;
+    }
+
+    /** first changed column */
+    public int getLeft(int frame) {
+	return bounds[frame * 4];
+    }
+
+    /** first changed row */
+    public int getTop(int frame) {
+	return bounds[frame * 4 + 1];
+    }
+
+    /** column after the last changed one */
+    public int getRight(int frame) {
+	return bounds[frame * 4 + 2];
+    }
+
+    /** row after the last changed one */
+    public int getBottom(int frame) {
+	return bounds[frame * 4 + 3];
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.player;
+
+import org.cbase.blinkendroid.player.bml.BLMHeader;
+
+/**
+ * The frames of the movie being played, as {@link PlayerView} reads them.
+ * Implementations differ in where the pixels are kept.
+ */
+public interface FrameStore {
+
+    BLMHeader getHeader();
+
+    int getFrameCount();
+
+    /**
+     * @return how long the frame is shown, in milliseconds
+     */
+    int getDuration(int frame);
+
+    /**
+     * @return false if the pixels of the frame have not arrived yet
+     */
+    boolean isLoaded(int frame);
+
+    /**
+     * Copies the pixels of a frame, row after row, into <code>pixels</code>
+     * which holds at least <code>width * height</code> bytes.
+     */
+    void getPixels(int frame, byte[] pixels);
+
+    /**
+     * @return what changed from frame to frame, computed when the store was
+     *         created
+     */
+    FrameChanges getChanges();
+
+    /**
+     * @return when each frame is shown, computed when the store was created
+     */
+    Timeline getTimeline();
+}
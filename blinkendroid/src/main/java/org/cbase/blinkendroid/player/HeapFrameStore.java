@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.player;
+
+import org.cbase.blinkendroid.player.bml.BLM;
+import org.cbase.blinkendroid.player.bml.BLMHeader;
+
+/**
+ * Plays a movie whose frames are all on the Java heap.
+ */
+public class HeapFrameStore implements FrameStore {
+
+    private final BLM blm;
+    private final FrameChanges changes;
+    private final Timeline timeline;
+
+    public HeapFrameStore(BLM blm) {
+	this.blm = blm;
+	this.changes = FrameChanges.compute(this);
+	this.timeline = Timeline.compute(this);
+    }
+
+    public BLMHeader getHeader() {
+	return blm.header;
+    }
+
+    public int getFrameCount() {
+	return blm.frames.size();
+    }
+
+    public int getDuration(int frame) {
+	return blm.frames.get(frame).duration;
+    }
+
+    public boolean isLoaded(int frame) {
+	return true;
+    }
+
+    public void getPixels(int frame, byte[] pixels) {
+	final byte[] source = blm.frames.get(frame).pixels;
+	System.arraycopy(source, 0, pixels, 0, source.length);
+    }
+
+    public FrameChanges getChanges() {
+	return changes;
+    }
+
+    public Timeline getTimeline() {
+	return timeline;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.cbase.blinkendroid.player.bml.BLM;
+import org.cbase.blinkendroid.player.bml.BLMHeader;
+import org.cbase.blinkendroid.player.bml.BLMReader;
+
+/**
+ * Plays a movie from a memory mapped file, so only the header and the frame
+ * durations stay on the Java heap no matter how long the movie is. The
+ * operating system pages the pixels in as they are shown.
+ */
+public class MappedFrameStore implements FrameStore {
+
+    private final BLMHeader header;
+    private final int[] durations;
+    private final int frameSize;
+    private final MappedByteBuffer pixels;
+    private final File file;
+    private final FrameChanges changes;
+    private final Timeline timeline;
+
+    private MappedFrameStore(BLMHeader header, int[] durations,
+	    MappedByteBuffer pixels, File file) {
+	this.header = header;
+	this.durations = durations;
+	this.frameSize = header.width * header.height;
+	this.pixels = pixels;
+	this.file = file;
+	this.changes = FrameChanges.compute(this);
+	this.timeline = Timeline.compute(this);
+    }
+
+    /**
+     * Deletes the file behind the store. The mapping stays valid, so a view
+     * still drawing from it is not hurt; the space is freed once it is gone.
+     */
+    public void release() {
+	file.delete();
+    }
+
+    public BLMHeader getHeader() {
+	return header;
+    }
+
+    public int getFrameCount() {
+	return durations.length;
+    }
+
+    public int getDuration(int frame) {
+	return durations[frame];
+    }
+
+    public boolean isLoaded(int frame) {
+	return true;
+    }
+
+    public synchronized void getPixels(int frame, byte[] pixels) {
+	this.pixels.position(frame * frameSize);
+	this.pixels.get(pixels, 0, frameSize);
+    }
+
+    public FrameChanges getChanges() {
+	return changes;
+    }
+
+    public Timeline getTimeline() {
+	return timeline;
+    }
+
+    /**
+     * Decodes a large movie straight into a memory mapped file of its own,
+     * so its pixels never pile up on the heap. A smaller movie is left to
+     * the frames.
+     */
+    public static class Spill implements BLMReader.FrameSink {
+
+	private final File dir;
+	private final long threshold;
+	private BLM blm;
+	private File file;
+	private MappedByteBuffer pixels;
+	private int frameSize;
+
+	/**
+	 * @param threshold
+	 *            size of the pixels from which on a movie is mapped
+	 */
+	public Spill(File dir, long threshold) {
+	    this.dir = dir;
+	    this.threshold = threshold;
+	}
+
+	public boolean begin(BLM blm) throws IOException {
+	    frameSize = blm.header.width * blm.header.height;
+	    final long size = (long) frameSize * blm.frames.size();
+	    if (size < threshold || size > Integer.MAX_VALUE)
+		return false;
+	    dir.mkdirs();
+	    file = File.createTempFile("frames", null, dir);
+	    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	    try {
+		raf.setLength(size);
+		pixels = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+			0, size);
+	    } catch (IOException e) {
+		file.delete();
+		throw e;
+	    } finally {
+		raf.close();
+	    }
+	    this.blm = blm;
+	    return true;
+	}
+
+	public void frame(int index, byte[] pixels) {
+	    this.pixels.position(index * frameSize);
+	    this.pixels.put(pixels, 0, frameSize);
+	}
+
+	/**
+	 * @param parsed
+	 *            the movie as the parser returned it, null if it failed
+	 * @return the store the movie was decoded into, or null if it was not
+	 */
+	public MappedFrameStore finish(BLM parsed) {
+	    if (null == blm)
+		return null;
+	    if (parsed != blm) {
+		// decoding broke off, nothing will read the file
+		file.delete();
+		return null;
+	    }
+	    final int[] durations = new int[blm.frames.size()];
+	    for (int i = 0; i < durations.length; i++)
+		durations[i] = blm.frames.get(i).duration;
+	    System.out.println("MappedFrameStore decoded " + pixels.capacity()
+		    + " bytes into " + file.getName());
+	    return new MappedFrameStore(blm.header, durations, pixels, file);
+	}
+    }
+}
@@ -19,133 +19,351 @@ package org.cbase.blinkendroid.player;
 
 import org.cbase.blinkendroid.Constants;
 import org.cbase.blinkendroid.player.bml.BLM;
+import org.cbase.blinkendroid.player.bml.BLMHeader;
+import org.cbase.blinkendroid.player.bml.BLMPalette;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.os.Handler;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.view.View;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.WindowManager;
 
 /**
+ * Plays the movie on a render thread of its own, so toasts, arrows and
+ * network callbacks on the UI thread do not delay the frame flips. The
+ * thread sleeps until the server time reaches the start of the next movie
+ * frame, then draws and posts it to the surface, which shows it on the
+ * following refresh of the display.
+ * 
  * @author Andreas Schildbach
  */
-public class PlayerView extends View implements Runnable {
+public class PlayerView extends SurfaceView implements SurfaceHolder.Callback,
+	Runnable {
 
-    private BLM blm;
+    private FrameStore frames;
+    private BLMHeader header;
     private float startX = 0f, startY = 0f, endX = 1f, endY = 1f;
     private boolean playing = false;
     private long startTime;
     private long timeDelta = 0;
-    private long[] frameTime;
+    private long timeDeltaUncertainty = Long.MAX_VALUE;
+    private Timeline timeline;
     private int numFrames;
     private int frame = 0;
     private long duration;
+    // the whole view needs repainting, not only what the frame changed
+    private boolean fullRedraw = true;
+
+    // guards everything the UI thread and the render thread share
+    private final Object lock = new Object();
+    private final SurfaceHolder holder;
+    private boolean surfaceReady = false;
+    private int surfaceWidth, surfaceHeight;
+    private Thread renderThread;
+    // time between two refreshes of the display in milliseconds
+    private final long refreshPeriod;
+    // frames shown a whole refresh after they were due, and frames never
+    // shown because a later one was already due
+    private long presentedFrames, lateFrames, droppedFrames;
 
-    private final Handler handler = new Handler();
+    // the render thread's own, drawing happens without the lock
     private final Paint paint = new Paint();
+    // the pixels of the frame being shown, reused for every frame
+    private byte[] pixels = new byte[0];
+    private FrameStore loadedFrames;
+    private int loadedFrame = -1;
 
     private static final int PIXEL_PADDING = 1;
+    // when more frames passed at once, the view is repainted as a whole
+    private static final int MAX_CHANGES_UNION = 8;
+    private static final float DEFAULT_REFRESH_RATE = 60f;
+    private static final int STATISTICS_LOG_FRAMES = 1000;
+    // how often to look for a frame that has not arrived yet, milliseconds
+    private static final long MISSING_FRAME_POLL = 50;
+
+    private final BitmapRenderer bitmapRenderer = new BitmapRenderer(
+	    PIXEL_PADDING);
+    private boolean useBitmapRenderer = Constants.PLAYER_BITMAP_RENDERER;
+
+    // used by the render thread only, or while it is not running
+    private final FrameBitmapCache frameCache = new FrameBitmapCache(
+	    Constants.PLAYER_FRAME_CACHE_BUDGET);
+    // only looping movies whose rendered frames all fit are cached
+    private boolean cacheFrames = false;
+    // the rendered frames no longer match, the render thread drops them
+    private boolean frameCacheStale = false;
 
     public PlayerView(Context context, AttributeSet attrs) {
 	super(context, attrs);
+	holder = getHolder();
+	holder.addCallback(this);
+	refreshPeriod = (long) Math.ceil(1000 / getRefreshRate(context));
     }
 
-    public void setBLM(final BLM blm) {
+    private static float getRefreshRate(Context context) {
+	final WindowManager windowManager = (WindowManager) context
+		.getSystemService(Context.WINDOW_SERVICE);
+	if (null == windowManager)
+	    return DEFAULT_REFRESH_RATE;
+	final float rate = windowManager.getDefaultDisplay().getRefreshRate();
+	return rate > 0 ? rate : DEFAULT_REFRESH_RATE;
+    }
 
-	// trying to free some memory first
-	System.gc();
+    public void setBLM(final BLM blm) {
+	setFrameStore(new HeapFrameStore(blm));
+    }
 
-	this.blm = blm;
-	this.numFrames = blm.frames.size();
-	long t = 0;
-	frameTime = new long[numFrames + 1];
-	for (int i = 0; i < numFrames; i++) {
-	    frameTime[i] = t;
-	    t += blm.frames.get(i).duration;
+    public void setFrameStore(final FrameStore frames) {
+	synchronized (lock) {
+	    this.frames = frames;
+	    this.header = frames.getHeader();
+	    this.timeline = frames.getTimeline();
+	    this.numFrames = timeline.getFrameCount();
+	    this.duration = timeline.getDuration();
+	    frame = 0;
+	    resetFrameCache();
+	    redraw();
 	}
-	frameTime[numFrames] = t;
-	duration = t;
-	frame = 0;
     }
 
     public void setStartTime(long startTime) {
-	this.startTime = startTime;
+	synchronized (lock) {
+	    this.startTime = startTime;
+	    lock.notifyAll();
+	}
     }
 
     public void setTimeDelta(long timeDelta) {
-	this.timeDelta = timeDelta;
+	synchronized (lock) {
+	    this.timeDelta = timeDelta;
+	    lock.notifyAll();
+	}
+    }
+
+    /**
+     * @param uncertainty
+     *            maximum error of <code>timeDelta</code> in milliseconds
+     */
+    public void setTimeDelta(long timeDelta, long uncertainty) {
+	synchronized (lock) {
+	    this.timeDelta = timeDelta;
+	    this.timeDeltaUncertainty = uncertainty;
+	    lock.notifyAll();
+	}
+    }
+
+    public long getTimeDeltaUncertainty() {
+	synchronized (lock) {
+	    return timeDeltaUncertainty;
+	}
+    }
+
+    /**
+     * @param useBitmapRenderer
+     *            false to draw one rectangle per pixel like before, to compare
+     */
+    public void setBitmapRenderer(boolean useBitmapRenderer) {
+	synchronized (lock) {
+	    this.useBitmapRenderer = useBitmapRenderer;
+	    resetFrameCache();
+	    redraw();
+	}
     }
 
     public void setClipping(float startX, float startY, float endX, float endY) {
-	this.startX = startX;
-	this.startY = startY;
-	this.endX = endX;
-	this.endY = endY;
+	synchronized (lock) {
+	    this.startX = startX;
+	    this.startY = startY;
+	    this.endX = endX;
+	    this.endY = endY;
+	    resetFrameCache();
+	    redraw();
+	}
     }
 
     public void startPlaying() {
-	if (!playing) {
-	    playing = true;
-	    handler.post(this);
+	synchronized (lock) {
+	    if (!playing) {
+		playing = true;
+		redraw();
+		startRendering();
+	    }
 	}
     }
 
     public void stopPlaying() {
-	if (playing) {
+	synchronized (lock) {
+	    if (!playing)
+		return;
 	    playing = false;
-	    handler.removeCallbacks(this);
-	}
-    }
-
-    @Override
-    protected void onDraw(final Canvas canvas) {
-
-	if (blm != null) {
-
-	    final byte[][] matrix = blm.frames.get(frame).matrix;
-
-	    final int absStartX = (int) (blm.header.width * startX);
-	    final int absStartY = (int) (blm.header.height * startY);
-	    final int absEndX = (int) (blm.header.width * endX);
-	    final int absEndY = (int) (blm.header.height * endY);
-
-	    final float pixelWidth = (float) getWidth() / (absEndX - absStartX);
-	    final float pixelHeight = (float) getHeight()
-		    / (absEndY - absStartY);
-
-	    // clip
-	    for (int y = absStartY; y < absEndY; y++) {
-		final int clippedY = y - absStartY;
-		final byte[] row = matrix[y];
-		for (int x = absStartX; x < absEndX; x++) {
-		    final int clippedX = x - absStartX;
-		    final int value = row[x] << (8 - blm.header.bits);
-		    if (blm.header.color) {
-			int r = ((row[x] & 48) >> 4) * 64;
-			int g = ((row[x] & 12) >> 2) * 64;
-			int b = (row[x] & 3) * 64;
-			// Log.d(Constants.LOG_TAG, r+","+g+","+b+":"+
-			// row[x]+";");
-			paint.setColor(Color.argb(255, r, g, b));
-		    } else {
-			paint.setColor(Color.argb(255, value, value, value));
+	}
+	stopRendering();
+	Log.i(Constants.LOG_TAG, "stopped playing, " + getStatistics());
+    }
+
+    /**
+     * @return movie frames shown so far
+     */
+    public long getPresentedFrames() {
+	synchronized (lock) {
+	    return presentedFrames;
+	}
+    }
+
+    /**
+     * @return movie frames shown more than one display refresh after they
+     *         were due
+     */
+    public long getLateFrames() {
+	synchronized (lock) {
+	    return lateFrames;
+	}
+    }
+
+    /**
+     * @return movie frames skipped because the next one was already due
+     */
+    public long getDroppedFrames() {
+	synchronized (lock) {
+	    return droppedFrames;
+	}
+    }
+
+    private String getStatistics() {
+	synchronized (lock) {
+	    return "frames presented " + presentedFrames + " late "
+		    + lateFrames + " dropped " + droppedFrames;
+	}
+    }
+
+    public void surfaceCreated(SurfaceHolder holder) {
+	synchronized (lock) {
+	    surfaceReady = true;
+	    redraw();
+	    startRendering();
+	}
+    }
+
+    public void surfaceChanged(SurfaceHolder holder, int format, int width,
+	    int height) {
+	synchronized (lock) {
+	    surfaceWidth = width;
+	    surfaceHeight = height;
+	    resetFrameCache();
+	    redraw();
+	}
+    }
+
+    public void surfaceDestroyed(SurfaceHolder holder) {
+	synchronized (lock) {
+	    surfaceReady = false;
+	}
+	// the surface must not be drawn on after this returns
+	stopRendering();
+	// with the render thread gone, nobody else touches the cache
+	frameCache.clear();
+    }
+
+    /**
+     * Paints the whole view with the next frame. Callers hold the lock.
+     */
+    private void redraw() {
+	fullRedraw = true;
+	lock.notifyAll();
+    }
+
+    /**
+     * Drops the rendered frames, which no longer match the movie, the
+     * clipping or the size of the surface. Callers hold the lock.
+     */
+    private void resetFrameCache() {
+	frameCacheStale = true;
+	cacheFrames = null != header && header.loop
+		&& frameCache.fits(numFrames, surfaceWidth, surfaceHeight);
+    }
+
+    /**
+     * Callers hold the lock.
+     */
+    private void startRendering() {
+	if (!playing || !surfaceReady || null != renderThread)
+	    return;
+	renderThread = new Thread(this, "PlayerView render");
+	renderThread.setPriority(Thread.MAX_PRIORITY);
+	renderThread.start();
+    }
+
+    private void stopRendering() {
+	final Thread thread;
+	synchronized (lock) {
+	    thread = renderThread;
+	    renderThread = null;
+	    lock.notifyAll();
+	}
+	if (null == thread || thread == Thread.currentThread())
+	    return;
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    public void run() {
+	final Snapshot snapshot = new Snapshot();
+	try {
+	    while (true) {
+		synchronized (lock) {
+		    if (renderThread != Thread.currentThread())
+			return;
+		    if (null == frames || surfaceWidth <= 0
+			    || surfaceHeight <= 0) {
+			lock.wait();
+			continue;
+		    }
+		    final long wait = renderFrame(snapshot);
+		    if (!snapshot.draw) {
+			// nothing visible changed, the frame is shown anyway
+			if (snapshot.present)
+			    presented(snapshot.behind);
+			if (wait > 0)
+			    lock.wait(wait);
+			continue;
 		    }
-		    canvas
-			    .drawRect(
-				    pixelWidth * clippedX + PIXEL_PADDING,
-				    pixelHeight * clippedY + PIXEL_PADDING,
-				    pixelWidth * (clippedX + 1) - PIXEL_PADDING,
-				    pixelHeight * (clippedY + 1)
-					    - PIXEL_PADDING, paint);
 		}
+		// locking the canvas blocks until the display is ready, the
+		// UI thread must not wait for that
+		final long drawStart = System.currentTimeMillis();
+		drawFrame(snapshot);
+		if (snapshot.present)
+		    presented(snapshot.behind + System.currentTimeMillis()
+			    - drawStart);
 	    }
+	} catch (InterruptedException e) {
+	    Log.w(Constants.LOG_TAG, "render thread interrupted", e);
 	}
     }
 
-    public void run() {
+    /**
+     * Decides whether the frame due at the current server time needs to be
+     * drawn and, if so, copies what drawing it needs into the snapshot.
+     * Callers hold the lock.
+     * 
+     * @return milliseconds until the next frame is due
+     */
+    private long renderFrame(final Snapshot snapshot) {
+	snapshot.draw = false;
+	snapshot.present = false;
+	if (frameCacheStale) {
+	    frameCacheStale = false;
+	    frameCache.clear();
+	}
 
 	// time into movie, taking endless looping into account
 	final long serverTime = System.currentTimeMillis() - timeDelta;
@@ -154,24 +372,212 @@ public class PlayerView extends View implements Runnable {
 	    time = duration + time;
 
 	// determine frame to be displayed
-	long nextFrameTime;
-	while (true) {
-	    if (time < frameTime[frame]) {
-		frame--;
-		continue;
+	final int previousFrame = frame;
+	frame = timeline.frameAt(time, frame);
+	final long nextFrameTime = timeline.getEnd(frame);
+
+	// display frame asap, as far as it changed
+	if (!frames.isLoaded(frame)) {
+	    // still on its way, the surface keeps an older frame meanwhile
+	    if (frame != previousFrame)
+		droppedFrames++;
+	    fullRedraw = true;
+	    return Math.min(nextFrameTime - time, MISSING_FRAME_POLL);
+	} else if (fullRedraw) {
+	    fullRedraw = false;
+	    snapshot.area.set(0, 0, surfaceWidth, surfaceHeight);
+	    snapshot.draw = true;
+	} else if (frame != previousFrame) {
+	    final int steps = (frame - previousFrame + numFrames) % numFrames;
+	    if (steps <= MAX_CHANGES_UNION)
+		droppedFrames += steps - 1;
+	    snapshot.draw = changedArea(previousFrame, frame, snapshot.area);
+	    snapshot.present = true;
+	    snapshot.behind = time - timeline.getStart(frame);
+	}
+	if (snapshot.draw)
+	    snapshot.take();
+
+	// wait until next frame
+	return nextFrameTime - time;
+    }
+
+    /**
+     * Counts a frame that was shown.
+     * 
+     * @param behind
+     *            milliseconds the frame was on its way to the display after
+     *            it was due
+     */
+    private void presented(final long behind) {
+	synchronized (lock) {
+	    if (behind > refreshPeriod)
+		lateFrames++;
+	    if (++presentedFrames % STATISTICS_LOG_FRAMES == 0)
+		Log.d(Constants.LOG_TAG, getStatistics());
+	}
+    }
+
+    /**
+     * Draws a frame into the given part of the surface. Posting it blocks
+     * until the display takes the buffer, which paces this thread to the
+     * refresh of the display.
+     */
+    private void drawFrame(final Snapshot s) {
+	final Canvas canvas = holder.lockCanvas(s.area);
+	if (null == canvas)
+	    return;
+	try {
+	    if (s.cacheFrames) {
+		Bitmap rendered = frameCache.get(s.frame);
+		if (null == rendered) {
+		    rendered = frameCache.create(s.frame, s.width, s.height);
+		    rasterize(new Canvas(rendered), s);
+		}
+		canvas.drawBitmap(rendered, 0, 0, null);
+	    } else {
+		rasterize(canvas, s);
 	    }
-	    nextFrameTime = frameTime[frame + 1];
-	    if (time >= nextFrameTime) {
-		frame++;
-		continue;
+	} finally {
+	    holder.unlockCanvasAndPost(canvas);
+	}
+    }
+
+    /**
+     * Rasterizes a frame over the whole canvas.
+     */
+    private void rasterize(final Canvas canvas, final Snapshot s) {
+	final BLMHeader header = s.header;
+	if (loadedFrames != s.frames || loadedFrame != s.frame) {
+	    final int frameSize = header.width * header.height;
+	    if (pixels.length != frameSize)
+		pixels = new byte[frameSize];
+	    s.frames.getPixels(s.frame, pixels);
+	    loadedFrames = s.frames;
+	    loadedFrame = s.frame;
+	}
+
+	final int absStartX = (int) (header.width * s.startX);
+	final int absStartY = (int) (header.height * s.startY);
+	final int absEndX = (int) (header.width * s.endX);
+	final int absEndY = (int) (header.height * s.endY);
+
+	canvas.drawColor(Color.BLACK);
+	if (s.useBitmapRenderer)
+	    bitmapRenderer.draw(canvas, pixels, header, absStartX, absStartY,
+		    absEndX, absEndY, s.width, s.height);
+	else
+	    drawRects(canvas, header, absStartX, absStartY, absEndX, absEndY,
+		    s.width, s.height);
+    }
+
+    /**
+     * The original renderer, one rectangle per pixel.
+     */
+    private void drawRects(final Canvas canvas, final BLMHeader header,
+	    final int absStartX, final int absStartY, final int absEndX,
+	    final int absEndY, final int width, final int height) {
+
+	final float pixelWidth = (float) width / (absEndX - absStartX);
+	final float pixelHeight = (float) height / (absEndY - absStartY);
+
+	final int[] palette = BLMPalette.argb(header);
+	// clip
+	for (int y = absStartY; y < absEndY; y++) {
+	    final int clippedY = y - absStartY;
+	    final int row = y * header.width;
+	    for (int x = absStartX; x < absEndX; x++) {
+		final int clippedX = x - absStartX;
+		paint.setColor(palette[pixels[row + x] & 0xff]);
+		canvas.drawRect(pixelWidth * clippedX + PIXEL_PADDING,
+			pixelHeight * clippedY + PIXEL_PADDING, pixelWidth
+				* (clippedX + 1) - PIXEL_PADDING, pixelHeight
+				* (clippedY + 1) - PIXEL_PADDING, paint);
 	    }
-	    break;
+	}
+    }
+
+    /**
+     * Determines the part of the surface showing pixels that changed on the
+     * way from one frame to the other.
+     * 
+     * @return false if nothing visible changed, so there is no need to draw
+     *         at all
+     */
+    private boolean changedArea(final int from, final int to, final Rect area) {
+	final int steps = (to - from + numFrames) % numFrames;
+	if (steps > MAX_CHANGES_UNION) {
+	    area.set(0, 0, surfaceWidth, surfaceHeight);
+	    return true;
+	}
+	final FrameChanges changes = frames.getChanges();
+	int left = header.width, top = header.height, right = 0, bottom = 0;
+	for (int i = 1; i <= steps; i++) {
+	    final int f = (from + i) % numFrames;
+	    if (changes.isUnchanged(f))
+		continue;
+	    left = Math.min(left, changes.getLeft(f));
+	    top = Math.min(top, changes.getTop(f));
+	    right = Math.max(right, changes.getRight(f));
+	    bottom = Math.max(bottom, changes.getBottom(f));
 	}
 
-	// display frame asap
-	invalidate();
+	// only the part inside the clipping is visible
+	final int absStartX = (int) (header.width * startX);
+	final int absStartY = (int) (header.height * startY);
+	final int absEndX = (int) (header.width * endX);
+	final int absEndY = (int) (header.height * endY);
+	left = Math.max(left, absStartX);
+	top = Math.max(top, absStartY);
+	right = Math.min(right, absEndX);
+	bottom = Math.min(bottom, absEndY);
+	if (right <= left || bottom <= top)
+	    return false;
 
-	// wait until next frame
-	handler.postDelayed(this, nextFrameTime - time);
+	final float pixelWidth = (float) surfaceWidth / (absEndX - absStartX);
+	final float pixelHeight = (float) surfaceHeight
+		/ (absEndY - absStartY);
+	area.set((int) (pixelWidth * (left - absStartX)),
+		(int) (pixelHeight * (top - absStartY)), (int) Math
+			.ceil(pixelWidth * (right - absStartX)), (int) Math
+			.ceil(pixelHeight * (bottom - absStartY)));
+	return true;
+    }
+
+    /**
+     * What the render thread needs to draw a frame, copied under the lock so
+     * the drawing itself does not hold it.
+     */
+    private class Snapshot {
+
+	final Rect area = new Rect();
+	boolean draw;
+	// the frame counts for the statistics
+	boolean present;
+	long behind;
+	FrameStore frames;
+	BLMHeader header;
+	int frame;
+	float startX, startY, endX, endY;
+	int width, height;
+	boolean cacheFrames;
+	boolean useBitmapRenderer;
+
+	/**
+	 * Callers hold the lock.
+	 */
+	void take() {
+	    frames = PlayerView.this.frames;
+	    header = PlayerView.this.header;
+	    frame = PlayerView.this.frame;
+	    startX = PlayerView.this.startX;
+	    startY = PlayerView.this.startY;
+	    endX = PlayerView.this.endX;
+	    endY = PlayerView.this.endY;
+	    width = surfaceWidth;
+	    height = surfaceHeight;
+	    cacheFrames = PlayerView.this.cacheFrames;
+	    useBitmapRenderer = PlayerView.this.useBitmapRenderer;
+	}
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.player;
+
+import org.cbase.blinkendroid.player.bml.BLM;
+import org.cbase.blinkendroid.player.bml.BLMHeader;
+
+/**
+ * Plays a movie while its frames are still arriving. The header and the
+ * frame durations come first, the pixels follow in any order. Until all
+ * frames are there, every frame counts as changed all over.
+ */
+public class ProgressiveFrameStore implements FrameStore {
+
+    private final BLM blm;
+    private final Timeline timeline;
+    private volatile FrameChanges changes;
+    private int loaded = 0;
+
+    /**
+     * @param blm
+     *            the movie with the pixels of every frame null
+     */
+    public ProgressiveFrameStore(BLM blm) {
+	this.blm = blm;
+	this.timeline = Timeline.compute(this);
+	this.changes = FrameChanges.whole(blm.header, blm.frames.size());
+    }
+
+    /**
+     * Stores the pixels of consecutive frames, starting with frame
+     * <code>first</code>.
+     */
+    public void setPixels(int first, byte[][] pixels) {
+	for (int i = 0; i < pixels.length; i++) {
+	    synchronized (this) {
+		if (null == blm.frames.get(first + i).pixels)
+		    loaded++;
+		blm.frames.get(first + i).pixels = pixels[i];
+	    }
+	}
+	if (isComplete())
+	    changes = FrameChanges.compute(this);
+    }
+
+    public synchronized boolean isComplete() {
+	return loaded == blm.frames.size();
+    }
+
+    /**
+     * @return true if all frames shown from <code>time</code> milliseconds
+     *         into the movie until <code>lookahead</code> milliseconds later
+     *         are there
+     */
+    public boolean isReady(long time, long lookahead) {
+	final int frameCount = timeline.getFrameCount();
+	final long duration = timeline.getDuration();
+	if (frameCount == 0 || duration <= 0)
+	    return isComplete();
+	time %= duration;
+	if (time < 0)
+	    time += duration;
+	int frame = timeline.frameAt(time);
+	long end = timeline.getStart(frame);
+	for (int i = 0; i < frameCount && end <= time + lookahead; i++) {
+	    if (!isLoaded(frame))
+		return false;
+	    end += getDuration(frame);
+	    frame = (frame + 1) % frameCount;
+	}
+	return true;
+    }
+
+    /**
+     * @return the whole movie, once it is complete
+     */
+    public BLM getBLM() {
+	return blm;
+    }
+
+    public BLMHeader getHeader() {
+	return blm.header;
+    }
+
+    public int getFrameCount() {
+	return blm.frames.size();
+    }
+
+    public int getDuration(int frame) {
+	return blm.frames.get(frame).duration;
+    }
+
+    public synchronized boolean isLoaded(int frame) {
+	return null != blm.frames.get(frame).pixels;
+    }
+
+    public void getPixels(int frame, byte[] pixels) {
+	final byte[] source;
+	synchronized (this) {
+	    source = blm.frames.get(frame).pixels;
+	}
+	if (null != source)
+	    System.arraycopy(source, 0, pixels, 0, source.length);
+    }
+
+    public FrameChanges getChanges() {
+	return changes;
+    }
+
+    public Timeline getTimeline() {
+	return timeline;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.player;
+
+/**
+ * The start time of every frame within the movie. Built once when a movie
+ * is loaded, it finds the frame for any point in time by binary search, so
+ * jumping to another time costs O(log n) no matter how far it is.
+ */
+public class Timeline {
+
+    // start of every frame in milliseconds, followed by the end of the last
+    private final long[] starts;
+
+    private Timeline(long[] starts) {
+	this.starts = starts;
+    }
+
+    public static Timeline compute(FrameStore frames) {
+	final int count = frames.getFrameCount();
+	final long[] starts = new long[count + 1];
+	long t = 0;
+	for (int i = 0; i < count; i++) {
+	    starts[i] = t;
+	    t += frames.getDuration(i);
+	}
+	starts[count] = t;
+	return new Timeline(starts);
+    }
+
+    public int getFrameCount() {
+	return starts.length - 1;
+    }
+
+    /**
+     * @return the length of one round of the movie in milliseconds
+     */
+    public long getDuration() {
+	return starts[starts.length - 1];
+    }
+
+    public long getStart(int frame) {
+	return starts[frame];
+    }
+
+    public long getEnd(int frame) {
+	return starts[frame + 1];
+    }
+
+    /**
+     * @param time
+     *            milliseconds into the movie, at least 0 and less than its
+     *            duration
+     * @param hint
+     *            the frame shown before, checked first together with the one
+     *            after it, as playback mostly moves on by one frame
+     * @return the frame shown at that time
+     */
+    public int frameAt(long time, int hint) {
+	if (hint >= 0 && hint < getFrameCount()) {
+	    if (time >= starts[hint] && time < starts[hint + 1])
+		return hint;
+	    if (hint + 1 < getFrameCount() && time >= starts[hint + 1]
+		    && time < starts[hint + 2])
+		return hint + 1;
+	}
+	return frameAt(time);
+    }
+
+    /**
+     * @return the frame shown <code>time</code> milliseconds into the movie
+     */
+    public int frameAt(long time) {
+	// the last frame starting no later than time; frames that last 0 ms
+	// are skipped as a later one starts at the same time
+	int low = 0, high = getFrameCount() - 1;
+	while (low < high) {
+	    final int middle = (low + high + 1) >>> 1;
+	    if (starts[middle] <= time)
+		low = middle;
+	    else
+		high = middle - 1;
+	}
+	return low;
+    }
+}
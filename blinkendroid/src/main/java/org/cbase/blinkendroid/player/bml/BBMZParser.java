@@ -1,84 +1,201 @@
 package org.cbase.blinkendroid.player.bml;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import org.cbase.blinkendroid.network.TransferListener;
+
+/**
+ * Reads .bbmz movies in one pass: the compressed bytes are inflated as they
+ * arrive and decoded straight into the frames. Besides the movie itself only
+ * the inflater's window and a small buffer are held in memory.
+ */
 public class BBMZParser {
 
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAGIC_SIZE = 4;
+
     public BLM parseBBMZ(InputStream openRawResource, long length) {
-	long time = System.currentTimeMillis();
+	return parseBBMZ(openRawResource, length, null);
+    }
 
-	ByteArrayOutputStream os = new ByteArrayOutputStream();
-	byte inbuf[] = new byte[1];
-	int n;
-	try {
-	    while ((n = openRawResource.read(inbuf, 0, 1)) != -1) {
-		os.write(inbuf, 0, n);
-		length -= n;
-		if (length == 0)
-		    break;
-	    }
-	} catch (Exception e) {
-	    System.out.println("not valid bbmz");
-	    e.printStackTrace();
-	}
+    /**
+     * Reads exactly <code>length</code> bytes, even if the movie turns out to
+     * be invalid, so a stream shared with other messages stays in sync.
+     *
+     * @param listener
+     *            told how many of the compressed bytes have been read, may be
+     *            null
+     * @return the movie, or null if it is not valid
+     */
+    public BLM parseBBMZ(InputStream in, long length, TransferListener listener) {
+	return parseBBMZ(in, length, listener, null);
+    }
 
-	ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	System.gc();
-	uncompress(new ByteArrayInputStream(os.toByteArray()), baos);
-	os = null;
+    /**
+     * @param sink
+     *            may take the pixels of a flat movie as they are decoded,
+     *            may be null
+     */
+    public BLM parseBBMZ(InputStream in, long length,
+	    TransferListener listener, BLMReader.FrameSink sink) {
+	long time = System.currentTimeMillis();
+	final BoundedInputStream bounded = new BoundedInputStream(in, length,
+		listener);
+	BLM blm = null;
 	try {
-	    ObjectInputStream objIn = new ObjectInputStream(
-		    new ByteArrayInputStream(baos.toByteArray()));
-	    Object o = objIn.readObject();
-	    System.out.println("decompression and parsing time :"
-		    + (System.currentTimeMillis() - time));
-	    baos = null;
-	    if (o instanceof BLM) {
-		return (BLM) o;
+	    final ZipInputStream zis = new ZipInputStream(bounded);
+	    if (null == zis.getNextEntry())
+		throw new IOException("no movie in bbmz");
+	    final BufferedInputStream bbm = new BufferedInputStream(zis,
+		    BUFFER_SIZE);
+	    final byte[] magic = new byte[MAGIC_SIZE];
+	    bbm.mark(MAGIC_SIZE);
+	    int n = 0;
+	    while (n < MAGIC_SIZE) {
+		final int read = bbm.read(magic, n, MAGIC_SIZE - n);
+		if (read == -1)
+		    throw new IOException("bbmz too short");
+		n += read;
+	    }
+	    bbm.reset();
+	    if (BLMReader.isFlat(magic)) {
+		blm = BLMReader.read(bbm, sink);
 	    } else {
-		System.out.println("not valid bbmz");
+		// movies converted before the flat format are serialized
+		// objects
+		final Object o = new ObjectInputStream(bbm).readObject();
+		if (o instanceof BLM)
+		    blm = (BLM) o;
+		else
+		    System.out.println("not valid bbmz");
 	    }
+	    System.out.println("decompression and parsing time :"
+		    + (System.currentTimeMillis() - time));
 	} catch (Exception e) {
 	    System.out.println("not valid bbmz");
 	    e.printStackTrace();
-	}
-	baos = null;
-	return null;
-    }
-
-    public static void uncompress(InputStream fis, OutputStream fos) {
-	try {
-	    ZipInputStream zis = new ZipInputStream(fis);
-	    zis.getNextEntry();
-	    final int BUFSIZ = 4096;
-	    byte inbuf[] = new byte[BUFSIZ];
-	    int length = 0;
-	    int n;
-	    while ((n = zis.read(inbuf, 0, BUFSIZ)) != -1) {
-		fos.write(inbuf, 0, n);
-		length += n;
-	    }
-	    System.out.println("BBMZParser read bytes " + length);
-	    // zis.close();
-	    // fis = null;
-	    // fos.close();
-	    // fos = null;
-	} catch (IOException e) {
-	    System.err.println(e);
 	} finally {
 	    try {
-		// if (fis != null)
-		// fis.close();
-		if (fos != null)
-		    fos.close();
+		bounded.skipRemaining();
 	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+	return blm;
+    }
+
+    /**
+     * Serializes and compresses a movie into the .bbmz format that
+     * {@link #parseBBMZ(InputStream, long)} reads. The same movie always
+     * gives the same bytes, so a player that rebuilt a movie from its frames
+     * gets the hash the server announced.
+     */
+    public static byte[] toBBMZ(BLM blm) throws IOException {
+	final ByteArrayOutputStream bbmz = new ByteArrayOutputStream();
+	final ZipOutputStream zos = new ZipOutputStream(bbmz);
+	final ZipEntry entry = new ZipEntry("movie.bbm");
+	entry.setTime(entryTime());
+	zos.putNextEntry(entry);
+	BLMWriter.write(blm, zos);
+	zos.closeEntry();
+	zos.close();
+	return bbmz.toByteArray();
+    }
+
+    /**
+     * Zip entries store their time as local date and time fields, so the time
+     * that gives the same fields in every time zone is a local one: noon on
+     * 1980-01-01, the first day a zip file can hold.
+     */
+    private static long entryTime() {
+	final Calendar calendar = Calendar.getInstance();
+	calendar.clear();
+	calendar.set(1980, Calendar.JANUARY, 1, 12, 0, 0);
+	return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Reads no more than the movie from the underlying stream and never
+     * closes it.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+	private final long length;
+	private final TransferListener listener;
+	private long remaining;
+
+	BoundedInputStream(InputStream in, long length,
+		TransferListener listener) {
+	    super(in);
+	    this.length = length;
+	    this.remaining = length;
+	    this.listener = listener;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    if (remaining <= 0)
+		return -1;
+	    final int b = in.read();
+	    if (b != -1)
+		consumed(1);
+	    return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if (remaining <= 0)
+		return -1;
+	    final int n = in.read(b, off, (int) Math.min(len, remaining));
+	    if (n > 0)
+		consumed(n);
+	    return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+	    final long skipped = in.skip(Math.min(n, remaining));
+	    if (skipped > 0)
+		consumed(skipped);
+	    return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+	    return (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+	    return false;
+	}
+
+	@Override
+	public void close() {
+	    // the underlying stream may carry more than this movie
+	}
+
+	void skipRemaining() throws IOException {
+	    final byte[] buffer = new byte[BUFFER_SIZE];
+	    while (remaining > 0) {
+		if (read(buffer, 0, buffer.length) == -1)
+		    break;
 	    }
 	}
+
+	private void consumed(long n) {
+	    remaining -= n;
+	    if (null != listener)
+		listener.transferProgress(length - remaining, length);
+	}
     }
 }
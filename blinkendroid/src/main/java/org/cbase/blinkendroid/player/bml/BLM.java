@@ -17,7 +17,10 @@
 
 package org.cbase.blinkendroid.player.bml;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 
 public class BLM implements Serializable {
@@ -29,12 +32,55 @@ public class BLM implements Serializable {
     public BLMHeader header;
     public List<Frame> frames;
 
+    /**
+     * @return a movie showing only the pixels from <code>x0,y0</code>
+     *         inclusive to <code>x1,y1</code> exclusive, with the same timing
+     */
+    public BLM crop(int x0, int y0, int x1, int y1) {
+	final BLM tile = new BLM();
+	tile.header = header.copy();
+	tile.header.width = x1 - x0;
+	tile.header.height = y1 - y0;
+	tile.frames = new ArrayList<Frame>(frames.size());
+	for (Frame frame : frames) {
+	    final Frame cropped = new Frame();
+	    cropped.duration = frame.duration;
+	    cropped.pixels = new byte[(x1 - x0) * (y1 - y0)];
+	    for (int y = y0; y < y1; y++)
+		System.arraycopy(frame.pixels, y * header.width + x0,
+			cropped.pixels, (y - y0) * (x1 - x0), x1 - x0);
+	    tile.frames.add(cropped);
+	}
+	return tile;
+    }
+
     public static class Frame implements Serializable {
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = -561025050799344726L;
 	public int duration;
-	public byte matrix[][];
+	/** row after row, <code>header.width</code> pixels each */
+	public byte pixels[];
+
+	/**
+	 * Reads frames serialized before the pixels were contiguous, when they
+	 * were a <code>byte[][] matrix</code> with one array per row.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+		ClassNotFoundException {
+	    final ObjectInputStream.GetField fields = in.readFields();
+	    duration = fields.get("duration", 0);
+	    pixels = (byte[]) fields.get("pixels", null);
+	    if (null == fields.getObjectStreamClass().getField("matrix"))
+		return;
+	    final byte[][] matrix = (byte[][]) fields.get("matrix", null);
+	    if (null == pixels && null != matrix) {
+		final int width = matrix.length == 0 ? 0 : matrix[0].length;
+		pixels = new byte[matrix.length * width];
+		for (int y = 0; y < matrix.length; y++)
+		    System.arraycopy(matrix[y], 0, pixels, y * width, width);
+	    }
+	}
     }
 }
@@ -21,4 +21,20 @@ public class BLMHeader implements Serializable {
 
     public BLMHeader() {
     }
+
+    public BLMHeader copy() {
+	final BLMHeader copy = new BLMHeader();
+	copy.width = width;
+	copy.height = height;
+	copy.bits = bits;
+	copy.title = title;
+	copy.description = description;
+	copy.creator = creator;
+	copy.author = author;
+	copy.email = email;
+	copy.loop = loop;
+	copy.color = color;
+	copy.filename = filename;
+	return copy;
+    }
 }
\ No newline at end of file
@@ -88,6 +88,10 @@ public class BLMManager {
 	return null;
     }
 
+    public List<BLMHeader> getBLMHeaders() {
+	return new ArrayList<BLMHeader>(blmHeader);
+    }
+
     public String getFilename(int arg2) {
 	// TODO Auto-generated method stub
 	return null;
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.player.bml;
+
+/**
+ * Maps pixel values to colors and back, the same way for the player and the
+ * converters.
+ * <p>
+ * A color movie packs red, green and blue into the low <code>bits</code> bits
+ * of a pixel, red highest. 8 bit movies use RGB 3-3-2, 6 bit movies RGB 2-2-2
+ * with values up to 63; other depths split the bits the same way, blue
+ * getting the fewest. A grayscale movie stores the brightness in the low
+ * <code>bits</code> bits. Every value is looked up in a table of 256 ARGB
+ * colors which is built once per kind of movie.
+ */
+public final class BLMPalette {
+
+    private static final int MAX_BITS = 8;
+    // [color ? 1 : 0][bits]
+    private static final int[][][] TABLES = new int[2][MAX_BITS + 1][];
+
+    private BLMPalette() {
+    }
+
+    /**
+     * @return 256 ARGB colors, indexed by <code>pixel & 0xff</code>. The
+     *         table is shared and must not be modified.
+     */
+    public static int[] argb(BLMHeader header) {
+	final int bits = Math.max(1, Math.min(MAX_BITS, header.bits));
+	final int color = header.color ? 1 : 0;
+	synchronized (TABLES) {
+	    int[] table = TABLES[color][bits];
+	    if (null == table) {
+		table = header.color ? colorTable(bits) : grayTable(bits);
+		TABLES[color][bits] = table;
+	    }
+	    return table;
+	}
+    }
+
+    /**
+     * @return the pixel value closest to the given color, each channel from 0
+     *         to 255
+     */
+    public static byte quantize(BLMHeader header, int r, int g, int b) {
+	final int bits = Math.max(1, Math.min(MAX_BITS, header.bits));
+	if (header.color) {
+	    final int blue = blueBits(bits);
+	    final int green = greenBits(bits);
+	    final int red = bits - green - blue;
+	    return (byte) ((r >> 8 - red) << green + blue
+		    | (g >> 8 - green) << blue | b >> 8 - blue);
+	}
+	// ITU-R BT.601 luma
+	final int luma = (r * 299 + g * 587 + b * 114) / 1000;
+	return (byte) (luma * ((1 << bits) - 1) / 255);
+    }
+
+    private static int[] colorTable(int bits) {
+	final int blue = blueBits(bits);
+	final int green = greenBits(bits);
+	final int red = bits - green - blue;
+	final int[] table = new int[256];
+	for (int v = 0; v < 256; v++)
+	    table[v] = argb(channel(v >> green + blue, red), channel(
+		    v >> blue, green), channel(v, blue));
+	return table;
+    }
+
+    private static int blueBits(int bits) {
+	return bits / 3;
+    }
+
+    private static int greenBits(int bits) {
+	return (bits - blueBits(bits)) / 2;
+    }
+
+    /**
+     * @return the channel in the low <code>bits</code> bits of the value,
+     *         from 0 to 255
+     */
+    private static int channel(int value, int bits) {
+	if (0 == bits)
+	    return 0;
+	final int max = (1 << bits) - 1;
+	return scale(value & max, max);
+    }
+
+    private static int[] grayTable(int bits) {
+	final int max = (1 << bits) - 1;
+	final int[] table = new int[256];
+	for (int v = 0; v < 256; v++) {
+	    // values beyond the movie's bits are clamped to white
+	    final int gray = scale(Math.min(v, max), max);
+	    table[v] = argb(gray, gray, gray);
+	}
+	return table;
+    }
+
+    private static int scale(int value, int max) {
+	return value * 255 / max;
+    }
+
+    private static int argb(int r, int g, int b) {
+	return 0xff000000 | r << 16 | g << 8 | b;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.player.bml;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Reads a movie in the flat binary format written by {@link BLMWriter}. A
+ * frame's pixels are read or decoded straight into one array, no object is
+ * created per row or pixel. Movies of version 1 hold every frame in full
+ * without a keyframe index, version 2 stores the frames between keyframes as
+ * {@link FrameDelta}s.
+ */
+public class BLMReader {
+
+    /** "BLMF" */
+    public static final int MAGIC = 0x424c4d46;
+    public static final int VERSION = 3;
+    // the first version with a keyframe index
+    static final int VERSION_INDEX = 2;
+    // the only version with deltas between the keyframes
+    static final int VERSION_DELTA = 2;
+
+    static final int FLAG_LOOP = 1;
+    static final int FLAG_COLOR = 2;
+
+    /**
+     * @return true if <code>start</code>, the first four bytes of a stream,
+     *         are the magic number of this format
+     */
+    public static boolean isFlat(byte[] start) {
+	return start.length >= 4
+		&& ((start[0] & 0xff) << 24 | (start[1] & 0xff) << 16
+			| (start[2] & 0xff) << 8 | (start[3] & 0xff)) == MAGIC;
+    }
+
+    public static BLM read(InputStream in) throws IOException {
+	return read(in, null);
+    }
+
+    /**
+     * @param sink
+     *            takes the pixels instead of the frames if it wants to, may
+     *            be null
+     * @return the movie, with the pixels of every frame null if they went to
+     *         the sink
+     */
+    public static BLM read(InputStream in, FrameSink sink) throws IOException {
+	final DataInputStream data = new DataInputStream(in);
+	final int version = readVersion(data);
+	final BLM blm = readHeader(data);
+	final int frameSize = blm.header.width * blm.header.height;
+	if (null != sink && sink.begin(blm)) {
+	    readInto(data, version, blm.frames.size(), frameSize, sink);
+	    return blm;
+	}
+	final int keyframeInterval = readIndex(data, version);
+	byte[] previous = null;
+	for (int i = 0; i < blm.frames.size(); i++) {
+	    final byte[] pixels = new byte[frameSize];
+	    readFrame(data, version, i % keyframeInterval == 0, previous,
+		    pixels);
+	    blm.frames.get(i).pixels = pixels;
+	    previous = pixels;
+	}
+	return blm;
+    }
+
+    /**
+     * Decodes the frames one after the other into two arrays, so the heap
+     * never holds more than the frame being decoded and the one before.
+     */
+    private static void readInto(DataInputStream data, int version,
+	    int frameCount, int frameSize, FrameSink sink) throws IOException {
+	byte[] previous = new byte[frameSize];
+	byte[] pixels = new byte[frameSize];
+	final int keyframeInterval = readIndex(data, version);
+	for (int i = 0; i < frameCount; i++) {
+	    readFrame(data, version, i % keyframeInterval == 0, previous,
+		    pixels);
+	    sink.frame(i, pixels);
+	    final byte[] swap = previous;
+	    previous = pixels;
+	    pixels = swap;
+	}
+    }
+
+    /**
+     * Skips the keyframe index, if the version has one.
+     * 
+     * @return the keyframe interval, 1 if every frame is whole
+     */
+    private static int readIndex(DataInputStream data, int version)
+	    throws IOException {
+	if (version < VERSION_INDEX)
+	    return 1;
+	final int keyframeInterval = data.readInt();
+	final int keyframeCount = data.readInt();
+	if (keyframeInterval <= 0 || keyframeCount < 0)
+	    throw new IOException("invalid keyframe index");
+	// the offsets are for seeking within the file, reading all frames
+	// needs none of them
+	for (int i = 0; i < keyframeCount; i++)
+	    data.readInt();
+	return keyframeInterval;
+    }
+
+    private static void readFrame(DataInputStream data, int version,
+	    boolean keyframe, byte[] previous, byte[] pixels)
+	    throws IOException {
+	if (keyframe || version != VERSION_DELTA)
+	    data.readFully(pixels);
+	else
+	    FrameDelta.read(data, previous, pixels);
+    }
+
+    /**
+     * Reads what {@link BLMWriter#writeHeader(BLM, java.io.OutputStream)}
+     * wrote: the header and the frame durations, but no pixels.
+     * 
+     * @return the movie with the pixels of every frame null
+     */
+    public static BLM readHeader(InputStream in) throws IOException {
+	final DataInputStream data = new DataInputStream(in);
+	readVersion(data);
+	return readHeader(data);
+    }
+
+    private static int readVersion(DataInputStream data) throws IOException {
+	if (data.readInt() != MAGIC)
+	    throw new IOException("not a flat movie");
+	final int version = data.readUnsignedShort();
+	if (version > VERSION)
+	    throw new IOException("unsupported movie version " + version);
+	return version;
+    }
+
+    private static BLM readHeader(DataInputStream data) throws IOException {
+	final BLM blm = new BLM();
+	final BLMHeader header = new BLMHeader();
+	blm.header = header;
+	header.width = data.readInt();
+	header.height = data.readInt();
+	header.bits = data.readUnsignedByte();
+	final int flags = data.readUnsignedByte();
+	header.loop = (flags & FLAG_LOOP) != 0;
+	header.color = (flags & FLAG_COLOR) != 0;
+	header.title = readText(data);
+	header.description = readText(data);
+	header.creator = readText(data);
+	header.author = readText(data);
+	header.email = readText(data);
+
+	final int frameCount = data.readInt();
+	if (header.width < 0 || header.height < 0 || frameCount < 0)
+	    throw new IOException("invalid movie dimensions");
+	blm.frames = new ArrayList<BLM.Frame>(frameCount);
+	for (int i = 0; i < frameCount; i++) {
+	    final BLM.Frame frame = new BLM.Frame();
+	    frame.duration = data.readInt();
+	    blm.frames.add(frame);
+	}
+	return blm;
+    }
+
+    private static String readText(DataInputStream data) throws IOException {
+	return data.readBoolean() ? data.readUTF() : null;
+    }
+
+    /**
+     * Takes the pixels of a movie frame by frame while it is read, so they
+     * need not be kept in the movie.
+     */
+    public interface FrameSink {
+
+	/**
+	 * @param blm
+	 *            the movie with its header and frame durations, but no
+	 *            pixels yet
+	 * @return false to keep the pixels in the frames after all
+	 */
+	boolean begin(BLM blm) throws IOException;
+
+	/**
+	 * @param pixels
+	 *            reused for the next frame once this returns
+	 */
+	void frame(int index, byte[] pixels) throws IOException;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.player.bml;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a movie in the flat binary format read by {@link BLMReader}:
+ * <ul>
+ * <li>the magic number and the format version</li>
+ * <li>the header: width, height, bits, flags and the texts</li>
+ * <li>the number of frames and the duration of every frame</li>
+ * <li>the keyframe interval, the number of keyframes and the offset of
+ * every keyframe from the end of this index</li>
+ * <li>the frames, frame after frame, each with all its pixels row after
+ * row</li>
+ * </ul>
+ * All numbers are big endian. The frames are stored whole because the .bbmz
+ * deflates them: deflate finds the pixels a frame shares with the one before
+ * by itself, and does better on whole frames than on {@link FrameDelta}s.
+ * The index lets a player start at any keyframe.
+ */
+public class BLMWriter {
+
+    public static final int KEYFRAME_INTERVAL = 32;
+
+    public static void write(BLM blm, String filename) throws IOException {
+	final OutputStream out = new FileOutputStream(filename);
+	try {
+	    write(blm, out);
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Writes the movie, <code>out</code> is flushed but not closed.
+     */
+    public static void write(BLM blm, OutputStream out) throws IOException {
+	final DataOutputStream data = new DataOutputStream(
+		new BufferedOutputStream(out));
+	writeHeader(blm, data);
+
+	final int frameSize = blm.header.width * blm.header.height;
+	final int frameCount = blm.frames.size();
+	final int keyframeCount = (frameCount + KEYFRAME_INTERVAL - 1)
+		/ KEYFRAME_INTERVAL;
+	data.writeInt(KEYFRAME_INTERVAL);
+	data.writeInt(keyframeCount);
+	for (int i = 0; i < keyframeCount; i++)
+	    data.writeInt(i * KEYFRAME_INTERVAL * frameSize);
+	for (BLM.Frame frame : blm.frames) {
+	    if (frame.pixels.length != frameSize)
+		throw new IOException("frame has " + frame.pixels.length
+			+ " pixels instead of " + frameSize);
+	    data.write(frame.pixels);
+	}
+	data.flush();
+    }
+
+    /**
+     * Writes everything but the pixels, as read by
+     * {@link BLMReader#readHeader(InputStream)}. <code>out</code> is flushed
+     * but not closed.
+     */
+    public static void writeHeader(BLM blm, OutputStream out)
+	    throws IOException {
+	final DataOutputStream data = new DataOutputStream(
+		new BufferedOutputStream(out));
+	writeHeader(blm, data);
+	data.flush();
+    }
+
+    private static void writeHeader(BLM blm, DataOutputStream data)
+	    throws IOException {
+	final BLMHeader header = blm.header;
+	data.writeInt(BLMReader.MAGIC);
+	data.writeShort(BLMReader.VERSION);
+	data.writeInt(header.width);
+	data.writeInt(header.height);
+	data.writeByte(header.bits);
+	data.writeByte((header.loop ? BLMReader.FLAG_LOOP : 0)
+		| (header.color ? BLMReader.FLAG_COLOR : 0));
+	writeText(data, header.title);
+	writeText(data, header.description);
+	writeText(data, header.creator);
+	writeText(data, header.author);
+	writeText(data, header.email);
+
+	data.writeInt(blm.frames.size());
+	for (BLM.Frame frame : blm.frames)
+	    data.writeInt(frame.duration);
+    }
+
+    private static void writeText(DataOutputStream data, String text)
+	    throws IOException {
+	data.writeBoolean(null != text);
+	if (null != text)
+	    data.writeUTF(text);
+    }
+}
@@ -160,7 +160,7 @@ public class BMLParser {
 
 	final Frame frame = new Frame();
 
-	frame.matrix = new byte[height][width];
+	frame.pixels = new byte[height * width];
 	int row = 0;
 	frame.duration = Integer.parseInt(parser.getAttributeValue(null,
 		FRAME_ATTR_DURATION));
@@ -174,7 +174,8 @@ public class BMLParser {
 		    parser.next();
 		    final String rowS = parser.getText();
 		    for (int i = 0; i < width; i++) {
-			frame.matrix[row][i] = parsePixel(rowS.charAt(i));
+			frame.pixels[row * width + i] = parsePixel(rowS
+				.charAt(i));
 		    }
 		    parser.next();
 		    row++;
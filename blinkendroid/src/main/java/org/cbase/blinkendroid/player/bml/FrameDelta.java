@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.player.bml;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes a frame as its difference to the frame before. The pixels are
+ * XORed with the previous ones, so unchanged pixels become zero, and runs of
+ * zeros are stored by their length only. The frame is a sequence of pairs:
+ * the number of unchanged pixels, then the number of changed pixels
+ * followed by their XOR values. Counts are unsigned varints, seven bits per
+ * byte, low bits first.
+ */
+public class FrameDelta {
+
+    // shorter runs of unchanged pixels stay in the changed run, a new pair
+    // would take more bytes than it saves
+    private static final int MIN_UNCHANGED_RUN = 3;
+
+    public static void write(DataOutputStream out, byte[] previous,
+	    byte[] current) throws IOException {
+	final int n = current.length;
+	int i = 0;
+	while (i < n) {
+	    final int unchangedStart = i;
+	    while (i < n && current[i] == previous[i])
+		i++;
+	    final int changedStart = i;
+	    while (i < n) {
+		if (current[i] != previous[i]) {
+		    i++;
+		    continue;
+		}
+		int j = i;
+		while (j < n && j - i < MIN_UNCHANGED_RUN
+			&& current[j] == previous[j])
+		    j++;
+		if (j == n || j - i >= MIN_UNCHANGED_RUN)
+		    break;
+		i = j;
+	    }
+	    writeCount(out, changedStart - unchangedStart);
+	    writeCount(out, i - changedStart);
+	    for (int k = changedStart; k < i; k++)
+		out.write(current[k] ^ previous[k]);
+	}
+    }
+
+    /**
+     * Decodes into <code>current</code>, which has the size of
+     * <code>previous</code>.
+     */
+    public static void read(DataInputStream in, byte[] previous,
+	    byte[] current) throws IOException {
+	final int n = current.length;
+	int i = 0;
+	while (i < n) {
+	    final int unchanged = readCount(in);
+	    if (unchanged < 0 || unchanged > n - i)
+		throw new IOException("delta beyond the frame");
+	    System.arraycopy(previous, i, current, i, unchanged);
+	    i += unchanged;
+	    final int changed = readCount(in);
+	    if (changed < 0 || changed > n - i)
+		throw new IOException("delta beyond the frame");
+	    for (final int end = i + changed; i < end; i++)
+		current[i] = (byte) (previous[i] ^ in.readByte());
+	}
+    }
+
+    private static void writeCount(DataOutputStream out, int count)
+	    throws IOException {
+	while (count >= 0x80) {
+	    out.write(count & 0x7f | 0x80);
+	    count >>>= 7;
+	}
+	out.write(count);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+	int count = 0;
+	for (int shift = 0; shift < 32; shift += 7) {
+	    final int b = in.readUnsignedByte();
+	    count |= (b & 0x7f) << shift;
+	    if ((b & 0x80) == 0)
+		return count;
+	}
+	throw new IOException("invalid count in delta");
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.cbase.blinkendroid.network.BlinkendroidServerProtocol;
+import org.cbase.blinkendroid.network.UploadScheduler;
+
+/**
+ * Lets only a few movies be sent at once, so when a whole room joins the
+ * first players start soon instead of all of them late together, and the
+ * time messages still get through.
+ * <p>
+ * Waiting uploads go to players that have already synchronized their clock
+ * first, as they can start playing right away, then the smallest movies
+ * first, then in the order they were asked for. The rate of finished uploads
+ * gives an estimate of when each waiting player will have its movie.
+ */
+public class AdmissionScheduler implements UploadScheduler {
+
+    // bytes per millisecond of one upload, before any has been measured
+    private static final double INITIAL_RATE = 256;
+    // weight of the last upload in the rate
+    private static final double RATE_WEIGHT = 0.25;
+
+    private final int maxUploads;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final LinkedList<Upload> waiting = new LinkedList<Upload>();
+    private final HashMap<BlinkendroidServerProtocol, Upload> running = new HashMap<BlinkendroidServerProtocol, Upload>();
+    private long arrivals = 0;
+    private double rate = INITIAL_RATE;
+
+    /**
+     * @param maxUploads
+     *            movies sent at the same time
+     */
+    public AdmissionScheduler(int maxUploads) {
+	this.maxUploads = maxUploads;
+    }
+
+    public synchronized void submit(BlinkendroidServerProtocol player,
+	    long size, Runnable upload) {
+	remove(player);
+	waiting.add(new Upload(player, size, upload, arrivals++));
+	start();
+	if (!running.containsKey(player))
+	    System.out.println("upload of " + size + " bytes waits behind "
+		    + running.size() + " running, " + (waiting.size() - 1)
+		    + " waiting, expected to play in "
+		    + getExpectedTimeToPlay(player) + " ms");
+    }
+
+    public synchronized void finished(BlinkendroidServerProtocol player) {
+	final Upload upload = running.remove(player);
+	if (null == upload)
+	    return;
+	final long duration = System.currentTimeMillis() - upload.started;
+	if (duration > 0 && upload.size > 0)
+	    rate = (1 - RATE_WEIGHT) * rate + RATE_WEIGHT * upload.size
+		    / duration;
+	start();
+    }
+
+    /**
+     * Forgets a waiting upload of a player that left.
+     */
+    public synchronized void cancel(BlinkendroidServerProtocol player) {
+	remove(player);
+    }
+
+    public void shutdown() {
+	executor.shutdown();
+	synchronized (this) {
+	    waiting.clear();
+	}
+    }
+
+    /**
+     * @return the number of uploads waiting for their turn
+     */
+    public synchronized int getWaiting() {
+	return waiting.size();
+    }
+
+    /**
+     * @return milliseconds until the player should have its movie, 0 if it
+     *         is not waiting for one
+     */
+    public synchronized long getExpectedTimeToPlay(
+	    BlinkendroidServerProtocol player) {
+	final long now = System.currentTimeMillis();
+	final Upload own = running.get(player);
+	if (null != own)
+	    return remaining(own, now);
+	// when each running upload will be done
+	final long[] free = new long[maxUploads];
+	int slot = 0;
+	for (Upload upload : running.values())
+	    if (slot < free.length)
+		free[slot++] = remaining(upload, now);
+	for (Upload upload : ordered()) {
+	    int first = 0;
+	    for (int i = 1; i < free.length; i++)
+		if (free[i] < free[first])
+		    first = i;
+	    free[first] += (long) (upload.size / rate);
+	    if (upload.player == player)
+		return free[first];
+	}
+	return 0;
+    }
+
+    private long remaining(Upload upload, long now) {
+	return Math.max(0, (long) (upload.size / rate) - (now - upload.started));
+    }
+
+    /**
+     * Starts waiting uploads while there is room. A player gets one upload
+     * at a time, a newer one waits until the replaced one has stopped.
+     */
+    private void start() {
+	if (running.size() >= maxUploads || waiting.isEmpty())
+	    return;
+	for (Upload upload : ordered()) {
+	    if (running.size() >= maxUploads)
+		break;
+	    if (running.containsKey(upload.player))
+		continue;
+	    waiting.remove(upload);
+	    upload.started = System.currentTimeMillis();
+	    running.put(upload.player, upload);
+	    try {
+		executor.execute(upload.task);
+	    } catch (RejectedExecutionException e) {
+		running.remove(upload.player);
+		System.out.println("upload rejected, server shut down");
+	    }
+	}
+    }
+
+    /**
+     * @return the waiting uploads in the order they get their turn
+     */
+    private List<Upload> ordered() {
+	final List<Upload> ordered = new ArrayList<Upload>(waiting);
+	// the players' clocks change meanwhile, so sort by a snapshot
+	for (Upload upload : ordered)
+	    upload.ready = upload.player.getClockUncertainty() != Long.MAX_VALUE;
+	Collections.sort(ordered, READINESS);
+	return ordered;
+    }
+
+    private void remove(BlinkendroidServerProtocol player) {
+	for (Iterator<Upload> i = waiting.iterator(); i.hasNext();) {
+	    if (i.next().player == player)
+		i.remove();
+	}
+    }
+
+    private static final Comparator<Upload> READINESS = new Comparator<Upload>() {
+	public int compare(Upload a, Upload b) {
+	    if (a.ready != b.ready)
+		return a.ready ? -1 : 1;
+	    if (a.size != b.size)
+		return a.size < b.size ? -1 : 1;
+	    return a.arrival < b.arrival ? -1 : (a.arrival == b.arrival ? 0
+		    : 1);
+	}
+    };
+
+    private static class Upload {
+
+	final BlinkendroidServerProtocol player;
+	final long size;
+	final Runnable task;
+	final long arrival;
+	long started;
+	boolean ready;
+
+	Upload(BlinkendroidServerProtocol player, long size, Runnable task,
+		long arrival) {
+	    this.player = player;
+	    this.size = size;
+	    this.task = task;
+	    this.arrival = arrival;
+	}
+    }
+}
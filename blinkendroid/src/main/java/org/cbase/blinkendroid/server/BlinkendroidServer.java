@@ -21,24 +21,51 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.cbase.blinkendroid.network.BlinkendroidServerProtocol;
+import org.cbase.blinkendroid.network.BulkAcceptor;
 import org.cbase.blinkendroid.network.ConnectionListener;
+import org.cbase.blinkendroid.network.NioConnection;
+import org.cbase.blinkendroid.network.NioTransport;
+import org.cbase.blinkendroid.network.broadcast.TimeBeaconSender;
 import org.cbase.blinkendroid.player.bml.BLMHeader;
 
 //import android.util.Log;
 
-public class BlinkendroidServer extends Thread {
+public class BlinkendroidServer extends Thread implements
+	NioTransport.AcceptListener {
 
     volatile private boolean running = false;
     volatile private ServerSocket serverSocket;
+    volatile private NioTransport nioTransport;
     private int port = -1;
+    private boolean nio;
+    private boolean timeBeacon;
+    private TimeBeaconSender timeBeaconSender;
+    // second connections for movies, null if the port could not be opened
+    private BulkAcceptor bulkAcceptor;
     private PlayerManager playerManager;
+    private GlobalTimer globalTimer;
+    private final MovieCache movieCache = new MovieCache(
+	    MovieCache.DEFAULT_BUDGET, true);
     private ConnectionListener connectionListener;
 
     public BlinkendroidServer(ConnectionListener connectionListener, int port) {
+	this(connectionListener, port, false);
+    }
+
+    /**
+     * @param nio
+     *            serve all players from a single selector thread instead of
+     *            a blocking receiver thread per player
+     */
+    public BlinkendroidServer(ConnectionListener connectionListener,
+	    int port, boolean nio) {
 	this.connectionListener = connectionListener;
 	this.port = port;
+	this.nio = nio;
     }
 
     @Override
@@ -47,13 +74,19 @@ public class BlinkendroidServer extends Thread {
 	running = true;
 	System.out.println("BlinkendroidServer Thread started");
 
+	if (nio) {
+	    selectLoop();
+	    System.out.println("BlinkendroidServer Thread ended");
+	    return;
+	}
+
 	try {
 	    serverSocket = new ServerSocket(port);
 	    serverSocket.setReuseAddress(true);
-	    playerManager = new PlayerManager();
+	    startPlayerManager();
 	    acceptLoop();
 	    System.out.println("after acceptLoop");
-	    playerManager.shutdown();
+	    stopPlayerManager();
 	    System.out.println("close serverSocket");
 	    serverSocket.close();
 	} catch (final IOException x) {
@@ -75,7 +108,7 @@ public class BlinkendroidServer extends Thread {
 		System.out.println("BlinkendroidServer got connection "
 		/* + clientSocket.getRemoteSocketAddress().toString() */);
 		final BlinkendroidServerProtocol blinkendroidProtocol = new BlinkendroidServerProtocol(
-			clientSocket, connectionListener);
+			clientSocket, connectionListener, bulkAcceptor);
 		playerManager.addClient(blinkendroidProtocol);
 	    } catch (final IOException x) {
 		x.printStackTrace();
@@ -84,6 +117,59 @@ public class BlinkendroidServer extends Thread {
 	}
     }
 
+    private void selectLoop() {
+	try {
+	    nioTransport = new NioTransport(port, this);
+	    // the bulk port is served by the same selector loop
+	    startPlayerManager();
+	} catch (final IOException x) {
+	    x.printStackTrace();
+	    System.out.println("Could not create ServerSocketChannel");
+	    throw new RuntimeException(x);
+	}
+	nioTransport.loop();
+	System.out.println("after selectLoop");
+	stopPlayerManager();
+	nioTransport.close();
+    }
+
+    private void startPlayerManager() throws IOException {
+	globalTimer = new GlobalTimer();
+	if (timeBeacon)
+	    timeBeaconSender = new TimeBeaconSender();
+	playerManager = new PlayerManager(globalTimer, timeBeaconSender,
+		movieCache);
+	try {
+	    if (null != nioTransport) {
+		bulkAcceptor = new BulkAcceptor(nioTransport);
+	    } else {
+		bulkAcceptor = new BulkAcceptor();
+		bulkAcceptor.start();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("no bulk channels, movies go with the rest");
+	}
+    }
+
+    private void stopPlayerManager() {
+	playerManager.shutdown();
+	if (null != bulkAcceptor)
+	    bulkAcceptor.close();
+	globalTimer.shutdown();
+	if (null != timeBeaconSender)
+	    timeBeaconSender.close();
+	movieCache.clear();
+    }
+
+    public void accepted(NioConnection connection) {
+	if (!running) // fast exit
+	    return;
+	System.out.println("BlinkendroidServer got nio connection");
+	playerManager.addClient(new BlinkendroidServerProtocol(connection,
+		connectionListener, bulkAcceptor));
+    }
+
     private Socket accept() throws IOException {
 	try {
 	    return serverSocket.accept();
@@ -99,7 +185,10 @@ public class BlinkendroidServer extends Thread {
 	System.out.println("BlinkendroidServer.shutdown() initiated");
 	running = false;
 	try {
-	    serverSocket.close(); // interrupt thread blocked in accept()
+	    if (null != nioTransport)
+		nioTransport.shutdown(); // wake up thread blocked in select()
+	    if (null != serverSocket)
+		serverSocket.close(); // interrupt thread blocked in accept()
 	    join();
 	} catch (final IOException x) {
 	    throw new RuntimeException(x);
@@ -109,11 +198,40 @@ public class BlinkendroidServer extends Thread {
 	System.out.println("BlinkendroidServer.shutdown() ended");
     }
 
+    /**
+     * Sends the time to all players with one datagram per tick, instead of a
+     * TCP message to each. Must be set before the server is started.
+     */
+    public void setTimeBeacon(boolean timeBeacon) {
+	this.timeBeacon = timeBeacon;
+    }
+
     public boolean isRunning() {
 	return running;
     }
 
+    /**
+     * Reads movies into the movie cache ahead of time, as far as the cache
+     * budget allows.
+     */
+    public void preload(List<BLMHeader> blmHeaders) {
+	final List<String> filenames = new ArrayList<String>();
+	for (BLMHeader blmHeader : blmHeaders) {
+	    if (null != blmHeader.filename)
+		filenames.add(blmHeader.filename);
+	}
+	movieCache.preload(filenames);
+    }
+
     public void switchMovie(BLMHeader blmHeader) {
 	playerManager.switchMovie(blmHeader);
     }
+
+    /**
+     * @param position
+     *            milliseconds into the movie the wall jumps to
+     */
+    public void seek(long position) {
+	playerManager.seek(position);
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one scheduler thread of the server. Time ticks and any other periodic
+ * or delayed work for all connections run here, instead of a sleeping thread
+ * per player.
+ */
+public class GlobalTimer {
+
+    public static final long TICK_INTERVAL = 100;
+
+    private final ScheduledExecutorService executor = Executors
+	    .newSingleThreadScheduledExecutor();
+
+    /**
+     * Runs a task every <code>period</code> milliseconds. A failing run is
+     * logged and does not cancel later runs.
+     */
+    public ScheduledFuture<?> schedule(final Runnable task, long period) {
+	return executor.scheduleAtFixedRate(new SafeRunnable(task), period,
+		period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task once after <code>delay</code> milliseconds.
+     */
+    public ScheduledFuture<?> scheduleOnce(final Runnable task, long delay) {
+	return executor.schedule(new SafeRunnable(task), delay,
+		TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+	System.out.println("GlobalTimer initiating shutdown");
+	executor.shutdownNow();
+    }
+
+    private static class SafeRunnable implements Runnable {
+
+	private final Runnable task;
+
+	SafeRunnable(Runnable task) {
+	    this.task = task;
+	}
+
+	public void run() {
+	    try {
+		task.run();
+	    } catch (RuntimeException e) {
+		e.printStackTrace();
+		System.out.println("GlobalTimer task failed");
+	    }
+	}
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cbase.blinkendroid.network.MovieHash;
+
+/**
+ * Holds movie files in memory, so a movie is read from the SD card once and
+ * not once per player. The content is kept in read-only buffers that all
+ * connections share; every caller gets its own view with an independent
+ * position. The least recently used movies are evicted when the cache grows
+ * beyond its budget.
+ */
+public class MovieCache {
+
+    public static final long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+    private final long budget;
+    private final boolean mapped;
+    private final LinkedHashMap<String, Movie> movies = new LinkedHashMap<String, Movie>(
+	    16, 0.75f, true);
+    private final HashMap<String, Hash> hashes = new HashMap<String, Hash>();
+    private long size = 0;
+
+    /**
+     * @param budget
+     *            maximum number of bytes to hold
+     * @param mapped
+     *            map the files into memory instead of copying them to the
+     *            heap
+     */
+    public MovieCache(long budget, boolean mapped) {
+	this.budget = budget;
+	this.mapped = mapped;
+    }
+
+    /**
+     * @return a read-only view of the movie positioned at its start, or null
+     *         if the movie does not exist or is larger than the budget. A
+     *         file that changed since it was loaded is loaded again, as its
+     *         hash is computed again.
+     */
+    public synchronized ByteBuffer get(String filename) {
+	final File file = new File(filename);
+	Movie movie = movies.get(filename);
+	if (null != movie
+		&& (movie.lastModified != file.lastModified() || movie.length != file
+			.length())) {
+	    System.out.println("MovieCache reload changed " + filename);
+	    movies.remove(filename);
+	    size -= movie.content.capacity();
+	    movie = null;
+	}
+	if (null == movie) {
+	    // taken before reading, so a change while reading is noticed
+	    final long lastModified = file.lastModified();
+	    final long length = file.length();
+	    final ByteBuffer content = load(filename);
+	    if (null == content)
+		return null;
+	    movie = new Movie(lastModified, length, content);
+	    movies.put(filename, movie);
+	    size += content.capacity();
+	    evict();
+	}
+	return movie.content.duplicate();
+    }
+
+    /**
+     * @return the {@link MovieHash} of the movie, or null if it can not be
+     *         read. It is computed once per version of the file.
+     */
+    public byte[] getHash(String filename) {
+	final File file = new File(filename);
+	synchronized (hashes) {
+	    final Hash hash = hashes.get(filename);
+	    if (null != hash && hash.lastModified == file.lastModified()
+		    && hash.length == file.length())
+		return hash.hash;
+	}
+	try {
+	    final Hash hash = new Hash(file.lastModified(), file.length(),
+		    MovieHash.digest(file));
+	    synchronized (hashes) {
+		hashes.put(filename, hash);
+	    }
+	    return hash.hash;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("MovieCache could not hash " + filename);
+	    return null;
+	}
+    }
+
+    public synchronized boolean contains(String filename) {
+	return movies.containsKey(filename);
+    }
+
+    /**
+     * Loads movies in the background, in the given order, as long as they
+     * fit into the budget without evicting one another.
+     */
+    public void preload(List<String> filenames) {
+	final List<String> pending = new ArrayList<String>(filenames);
+	new Thread() {
+	    @Override
+	    public void run() {
+		long preloaded = 0;
+		for (String filename : pending) {
+		    final long length = new File(filename).length();
+		    if (preloaded + length > budget)
+			break;
+		    if (null != get(filename))
+			preloaded += length;
+		}
+		System.out.println("MovieCache preloaded bytes " + preloaded);
+	    }
+	}.start();
+    }
+
+    public synchronized void clear() {
+	movies.clear();
+	size = 0;
+    }
+
+    private void evict() {
+	final Iterator<Map.Entry<String, Movie>> i = movies.entrySet()
+		.iterator();
+	// the entry just added is the most recently used one and stays
+	while (size > budget && movies.size() > 1 && i.hasNext()) {
+	    final Map.Entry<String, Movie> eldest = i.next();
+	    System.out.println("MovieCache evict " + eldest.getKey());
+	    size -= eldest.getValue().content.capacity();
+	    i.remove();
+	}
+    }
+
+    private ByteBuffer load(String filename) {
+	final File file = new File(filename);
+	if (!file.exists() || file.length() > budget) {
+	    System.out.println("MovieCache can not cache " + filename);
+	    return null;
+	}
+	try {
+	    final FileInputStream is = new FileInputStream(file);
+	    try {
+		final FileChannel channel = is.getChannel();
+		final int length = (int) channel.size();
+		if (mapped)
+		    return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		final ByteBuffer movie = ByteBuffer.allocate(length);
+		while (movie.hasRemaining() && channel.read(movie) != -1)
+		    ;
+		movie.flip();
+		return movie.asReadOnlyBuffer();
+	    } finally {
+		is.close();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("MovieCache could not load " + filename);
+	    return null;
+	}
+    }
+
+    private static class Movie {
+
+	final long lastModified;
+	final long length;
+	final ByteBuffer content;
+
+	Movie(long lastModified, long length, ByteBuffer content) {
+	    this.lastModified = lastModified;
+	    this.length = length;
+	    this.content = content;
+	}
+    }
+
+    private static class Hash {
+
+	final long lastModified;
+	final long length;
+	final byte[] hash;
+
+	Hash(long lastModified, long length, byte[] hash) {
+	    this.lastModified = lastModified;
+	    this.length = length;
+	    this.hash = hash;
+	}
+    }
+}
@@ -1,51 +1,256 @@
 package org.cbase.blinkendroid.server;
 
+import java.io.File;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
+import org.cbase.blinkendroid.Constants;
 import org.cbase.blinkendroid.network.BlinkendroidServerProtocol;
 import org.cbase.blinkendroid.network.ConnectionListener;
+import org.cbase.blinkendroid.network.FrameChunks;
+import org.cbase.blinkendroid.network.TransferListener;
 
 //import android.util.Log;
 
-public class PlayerClient implements ConnectionListener {
+public class PlayerClient implements ConnectionListener, TransferListener {
 
-    // position
+    // position and clipping, kept by the manager under its lock
     int x, y;
-    // clipping
     float startX, endX, startY, endY;
     // protocol
     BlinkendroidServerProtocol blinkendroidProtocol;
-    long startTime;
+    volatile long startTime;
     PlayerManager playerManager;
+    // movie upload progress
+    volatile long transferred, transferTotal;
+    // the tile of the current movie sent instead of it, if any; touched by
+    // the sending only, which the queue runs one message at a time
+    private TileCache.Tile tile;
+    private int tileColumns, tileRows;
+    // everything but the time tick is sent from here
+    private final SendQueue sendQueue;
 
+    /**
+     * @param sender
+     *            runs the sending of queued messages
+     */
     public PlayerClient(PlayerManager playerManager,
-	    BlinkendroidServerProtocol blinkendroidProtocol, long startTime) {
+	    BlinkendroidServerProtocol blinkendroidProtocol, long startTime,
+	    Executor sender) {
 	this.playerManager = playerManager;
 	this.blinkendroidProtocol = blinkendroidProtocol;
 	this.startTime = startTime;
+	this.sendQueue = new SendQueue(sender,
+		Constants.SERVER_SEND_QUEUE_CAPACITY);
 	blinkendroidProtocol.addConnectionClosedListener(this);
+	blinkendroidProtocol.setTransferListener(this);
     }
 
+    /**
+     * Drops whatever is still waiting to be sent and closes the connection.
+     */
     public void shutdown() {
-	blinkendroidProtocol.shutdown();
+	sendQueue.offer(new SendQueue.Message(SendQueue.SHUTDOWN) {
+	    void send() {
+		blinkendroidProtocol.shutdown();
+	    }
+	});
     }
 
+    /**
+     * Queues the clipping of the current layout. Callers hold the manager's
+     * lock.
+     */
     public void clip() {
-	System.out.println("PlayerClient clip " + x + ":" + y);
-	blinkendroidProtocol.clip(startX, startY, endX, endY);
+	final Placement p = placement(playerManager.getFilename());
+	sendQueue.offer(new SendQueue.Message(SendQueue.CLIP) {
+	    void send() {
+		sendClipOrTile(p);
+	    }
+	});
     }
 
-    public void play(String filename) {
-	System.out.println("PlayerClient play  " + x + ":" + y + " filename "
-		+ filename);
-	blinkendroidProtocol.play(x, y, System.currentTimeMillis(), startTime,
-		filename);
+    private void sendClipOrTile(Placement p) {
+	System.out.println("PlayerClient clip " + p.x + ":" + p.y);
+	if (null != tile && (tileColumns != p.columns || tileRows != p.rows)) {
+	    // the grid changed, so did the part of the movie this player shows
+	    sendPlay(p);
+	    return;
+	}
+	sendClip(p);
     }
 
-    public void arrow(int degrees, int color) {
+    private void sendClip(Placement p) {
+	if (null != tile)
+	    blinkendroidProtocol.clip(0f, 0f, 1f, 1f);
+	else
+	    blinkendroidProtocol.clip(p.startX, p.startY, p.endX, p.endY);
+    }
+
+    /**
+     * Queues a movie, null for the default one. Callers hold the manager's
+     * lock.
+     */
+    public void play(final String filename) {
+	final Placement p = placement(filename);
+	sendQueue.offer(new SendQueue.Message(SendQueue.PLAY) {
+	    void send() {
+		sendPlay(p);
+	    }
+	});
+    }
+
+    private void sendPlay(Placement p) {
+	System.out.println("PlayerClient play  " + p.x + ":" + p.y
+		+ " filename " + p.filename);
+	final boolean wasTiled = null != tile;
+	this.tile = null;
+	if (null == p.filename) {
+	    blinkendroidProtocol.play(p.x, p.y, System.currentTimeMillis(),
+		    startTime, (String) null);
+	} else if (!playTile(p)) {
+	    playMovie(p.x, p.y, p.filename);
+	}
+	if (null != tile || wasTiled)
+	    sendClip(p);
+    }
+
+    /**
+     * Sends only the part of the movie this player shows.
+     *
+     * @return false if there is no tile for the movie
+     */
+    private boolean playTile(Placement p) {
+	tile = playerManager.getTileCache().get(p.filename, p.columns, p.rows,
+		p.x, p.y);
+	if (null == tile)
+	    return false;
+	tileColumns = p.columns;
+	tileRows = p.rows;
+	if (null != tile.frames)
+	    blinkendroidProtocol.announce(p.x, p.y, System.currentTimeMillis(),
+		    startTime, tile.hash, null, null, tile.frames);
+	else
+	    blinkendroidProtocol.announce(p.x, p.y, System.currentTimeMillis(),
+		    startTime, tile.hash, null, ByteBuffer.wrap(tile.content)
+			    .asReadOnlyBuffer());
+	return true;
+    }
+
+    private void playMovie(int x, int y, String filename) {
+	// a large movie goes in chunks, so the player starts early
+	if (new File(filename).length() >= Constants.SERVER_PROGRESSIVE_THRESHOLD) {
+	    final FrameChunks frames = playerManager.getTileCache()
+		    .getFrameChunks(filename);
+	    if (null != frames) {
+		// the player may have it from an earlier round
+		blinkendroidProtocol.announce(x, y, System.currentTimeMillis(),
+			startTime, frames.getHash(), null, null, frames);
+		return;
+	    }
+	}
+	final MovieCache movieCache = playerManager.getMovieCache();
+	final ByteBuffer movie = movieCache.get(filename);
+	final byte[] hash = movieCache.getHash(filename);
+	if (null != hash)
+	    // the player may have it from an earlier round
+	    blinkendroidProtocol.announce(x, y, System.currentTimeMillis(),
+		    startTime, hash, filename, movie);
+	else if (null != movie)
+	    blinkendroidProtocol.play(x, y, System.currentTimeMillis(),
+		    startTime, movie);
+	else
+	    blinkendroidProtocol.play(x, y, System.currentTimeMillis(),
+		    startTime, filename);
+    }
+
+    public void seek(final long startTime) {
+	System.out.println("PlayerClient seek  " + x + ":" + y + " startTime "
+		+ startTime);
+	this.startTime = startTime;
+	sendQueue.offer(new SendQueue.Message(SendQueue.SEEK) {
+	    void send() {
+		blinkendroidProtocol.seek(System.currentTimeMillis(), startTime);
+	    }
+	});
+    }
+
+    public void serverTime(long t) {
+	blinkendroidProtocol.serverTime(t);
+    }
+
+    public long getClockUncertainty() {
+	return blinkendroidProtocol.getClockUncertainty();
+    }
+
+    public void transferProgress(long transferred, long total) {
+	final long percent = total == 0 ? 100 : transferred * 100 / total;
+	// a new movie starts below the progress of the previous one
+	final long previous = total == 0 || transferred < this.transferred ? -1
+		: this.transferred * 100 / total;
+	if (previous < 0 || percent / 10 != previous / 10)
+	    System.out.println("PlayerClient transfer " + x + ":" + y + " "
+		    + percent + "%");
+	this.transferred = transferred;
+	this.transferTotal = total;
+    }
+
+    /**
+     * @return milliseconds until the player should have its movie, 0 if it
+     *         is not waiting for one
+     */
+    public long getExpectedTimeToPlay() {
+	return playerManager.getUploads().getExpectedTimeToPlay(
+		blinkendroidProtocol);
+    }
+
+    /**
+     * @return bytes of the current movie sent to the player so far
+     */
+    public long getTransferred() {
+	return transferred;
+    }
+
+    public long getTransferTotal() {
+	return transferTotal;
+    }
+
+    public void arrow(final int degrees, final int color) {
 	System.out.println("PlayerClient arrow  " + x + ":" + y + " degrees "
 		+ degrees + " color " + color);
-	blinkendroidProtocol.arrow(degrees, color);
+	sendQueue.offer(new SendQueue.Message(SendQueue.ARROW) {
+	    void send() {
+		blinkendroidProtocol.arrow(degrees, color);
+	    }
+	});
+    }
+
+    /**
+     * @return messages waiting to be sent to the player
+     */
+    public int getQueueDepth() {
+	return sendQueue.getDepth();
+    }
+
+    public int getMaxQueueDepth() {
+	return sendQueue.getMaxDepth();
+    }
+
+    /**
+     * @return messages dropped because the player's queue was full or the
+     *         player was shut down
+     */
+    public int getDroppedMessages() {
+	return sendQueue.getDropped();
+    }
+
+    /**
+     * @return plays, clips and seeks replaced by a newer one before they
+     *         were sent
+     */
+    public int getReplacedMessages() {
+	return sendQueue.getReplaced();
     }
 
     public void connectionClosed(InetAddress inetAddress) {
@@ -57,4 +262,38 @@ public class PlayerClient implements ConnectionListener {
     public void connectionOpened(InetAddress inetAddress) {
 	System.out.println("PlayerClient connectionOpened  " + x + ":" + y);
     }
+
+    /**
+     * Callers hold the manager's lock.
+     */
+    private Placement placement(String filename) {
+	return new Placement(x, y, startX, startY, endX, endY, playerManager
+		.getColumns(), playerManager.getRows(), filename);
+    }
+
+    /**
+     * Where the player is on the wall and what it plays, as it was when a
+     * message was queued. The message is sent from this copy, the manager
+     * may have moved on by then.
+     */
+    private static class Placement {
+
+	final int x, y;
+	final float startX, startY, endX, endY;
+	final int columns, rows;
+	final String filename;
+
+	Placement(int x, int y, float startX, float startY, float endX,
+		float endY, int columns, int rows, String filename) {
+	    this.x = x;
+	    this.y = y;
+	    this.startX = startX;
+	    this.startY = startY;
+	    this.endX = endX;
+	    this.endY = endY;
+	    this.columns = columns;
+	    this.rows = rows;
+	    this.filename = filename;
+	}
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Where the players are on the wall. Players are found by position in
+ * constant time, and the free places inside the wall are kept in order, so
+ * neither joining nor leaving looks at every place of the wall. The wall has
+ * no size limit.
+ */
+class PlayerGrid {
+
+    private final HashMap<Long, PlayerClient> players = new HashMap<Long, PlayerClient>();
+    // free places inside the wall, by row and then column
+    private final TreeSet<Long> free = new TreeSet<Long>();
+    // players per column and per row, so the wall shrinks without a scan
+    private int[] columnPlayers = new int[1];
+    private int[] rowPlayers = new int[1];
+    private int columns = 1, rows = 1;
+
+    PlayerGrid() {
+	free.add(key(0, 0));
+    }
+
+    int getColumns() {
+	return columns;
+    }
+
+    int getRows() {
+	return rows;
+    }
+
+    /**
+     * @return the player at that place, or null if it is free or outside
+     *         the wall
+     */
+    PlayerClient get(int x, int y) {
+	if (x < 0 || y < 0 || x >= columns || y >= rows)
+	    return null;
+	return players.get(key(x, y));
+    }
+
+    /**
+     * @return a copy of all players, in no particular order
+     */
+    List<PlayerClient> getPlayers() {
+	return new ArrayList<PlayerClient>(players.values());
+    }
+
+    /**
+     * Puts the player at the first free place, row by row, or grows the wall
+     * by a column or a row if there is none. The wall stays about square.
+     * 
+     * @return true if the wall grew
+     */
+    boolean add(PlayerClient player) {
+	boolean grown = false;
+	if (free.isEmpty()) {
+	    grown = true;
+	    if (columns > rows) {
+		rows++;
+		rowPlayers = grow(rowPlayers, rows);
+		for (int x = 0; x < columns; x++)
+		    free.add(key(x, rows - 1));
+	    } else {
+		columns++;
+		columnPlayers = grow(columnPlayers, columns);
+		for (int y = 0; y < rows; y++)
+		    free.add(key(columns - 1, y));
+	    }
+	}
+	final long place = free.first();
+	free.remove(place);
+	player.x = x(place);
+	player.y = y(place);
+	players.put(place, player);
+	columnPlayers[player.x]++;
+	rowPlayers[player.y]++;
+	return grown;
+    }
+
+    /**
+     * Frees the player's place and drops empty columns and rows at the
+     * right and bottom edge of the wall.
+     */
+    void remove(PlayerClient player) {
+	final long place = key(player.x, player.y);
+	if (players.get(place) != player)
+	    return;
+	players.remove(place);
+	free.add(place);
+	columnPlayers[player.x]--;
+	rowPlayers[player.y]--;
+
+	while (columns > 1 && columnPlayers[columns - 1] == 0) {
+	    columns--;
+	    for (int y = 0; y < rows; y++)
+		free.remove(key(columns, y));
+	    System.out.println("newMaxX " + columns);
+	}
+	while (rows > 1 && rowPlayers[rows - 1] == 0) {
+	    rows--;
+	    for (int x = 0; x < columns; x++)
+		free.remove(key(x, rows));
+	    System.out.println("newMaxY " + rows);
+	}
+    }
+
+    private static int[] grow(int[] counts, int size) {
+	if (counts.length >= size)
+	    return counts;
+	final int[] grown = new int[Math.max(size, counts.length * 2)];
+	System.arraycopy(counts, 0, grown, 0, counts.length);
+	return grown;
+    }
+
+    // the row in the high bits, so places sort row by row
+    private static long key(int x, int y) {
+	return (long) y << 32 | x;
+    }
+
+    private static int x(long key) {
+	return (int) key;
+    }
+
+    private static int y(long key) {
+	return (int) (key >>> 32);
+    }
+}
@@ -1,26 +1,126 @@
 package org.cbase.blinkendroid.server;
 
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.cbase.blinkendroid.Constants;
 import org.cbase.blinkendroid.network.BlinkendroidServerProtocol;
+import org.cbase.blinkendroid.network.broadcast.TimeBeaconSender;
 import org.cbase.blinkendroid.player.bml.BLMHeader;
 
 import android.graphics.Color;
 
 public class PlayerManager {
 
-    private PlayerClient[][] clients = new PlayerClient[20][20];
-    private int maxX = 1, maxY = 1;
+    private final PlayerGrid grid = new PlayerGrid();
     private long startTime = 0;
     private boolean running = true;
     private String filename = null;
     private AtomicInteger arrowColorIndex = new AtomicInteger(new Random()
 	    .nextInt(ARROW_COLORS.length));
 
+    // all connected clients, for the time tick which must not wait for the
+    // manager lock while a movie is being sent
+    private final List<PlayerClient> tickClients = new CopyOnWriteArrayList<PlayerClient>();
+
+    // with a time beacon, the TCP tick only runs every that many rounds as a
+    // fallback for players that do not get the datagrams
+    private static final int BEACON_TCP_FALLBACK_ROUNDS = 10;
+    private final TimeBeaconSender timeBeacon;
+    private final GlobalTimer globalTimer;
+    // sends the players' queued messages, so the manager lock is only held
+    // to change the wall and never waits for a player
+    private final ExecutorService sender = Executors.newCachedThreadPool();
+    private final AdmissionScheduler uploads = new AdmissionScheduler(
+	    Constants.SERVER_MAX_UPLOADS);
+    // a layout is scheduled, and how many have been made
+    private boolean layoutPending = false;
+    private int layoutEpoch = 0;
+    private final MovieCache movieCache;
+    private final TileCache tileCache;
+    private int tickRound = 0;
+    private static final int SKEW_LOG_ROUNDS = 50;
+    private int skewRound = 0;
+
     private static int[] ARROW_COLORS = new int[] { Color.RED, Color.BLUE,
 	    Color.GREEN, Color.GRAY, Color.YELLOW, Color.TRANSPARENT };
 
+    /**
+     * @param timeBeacon
+     *            sends the time to the whole wall at once, may be null
+     */
+    public PlayerManager(GlobalTimer globalTimer,
+	    TimeBeaconSender timeBeacon, MovieCache movieCache) {
+	this.timeBeacon = timeBeacon;
+	this.globalTimer = globalTimer;
+	this.movieCache = movieCache;
+	this.tileCache = new TileCache(movieCache, TileCache.DEFAULT_BUDGET);
+	globalTimer.schedule(new Runnable() {
+	    public void run() {
+		tick();
+	    }
+	}, GlobalTimer.TICK_INTERVAL);
+    }
+
+    /**
+     * Sends the same global time to every client.
+     */
+    private void tick() {
+	final long t = System.currentTimeMillis();
+	if (++skewRound % SKEW_LOG_ROUNDS == 0 && tickClients.size() > 1) {
+	    System.out.println("residual skew at most " + getSkewBound()
+		    + " ms");
+	    logSendQueues();
+	}
+	if (null != timeBeacon) {
+	    timeBeacon.send(t);
+	    if (tickRound++ % BEACON_TCP_FALLBACK_ROUNDS != 0)
+		return;
+	}
+	for (PlayerClient pClient : tickClients)
+	    pClient.serverTime(t);
+    }
+
+    /**
+     * Every player's clock error is bounded by the uncertainty it reported,
+     * so two players can be apart by at most the sum of their bounds.
+     *
+     * @return the bound of the skew between any two players in milliseconds,
+     *         or {@link Long#MAX_VALUE} if a player has not reported yet
+     */
+    public long getSkewBound() {
+	long first = 0, second = 0;
+	for (PlayerClient pClient : tickClients) {
+	    final long uncertainty = pClient.getClockUncertainty();
+	    if (uncertainty == Long.MAX_VALUE)
+		return Long.MAX_VALUE;
+	    if (uncertainty > first) {
+		second = first;
+		first = uncertainty;
+	    } else if (uncertainty > second) {
+		second = uncertainty;
+	    }
+	}
+	return first + second;
+    }
+
+    private void logSendQueues() {
+	int waiting = 0, deepest = 0, dropped = 0, replaced = 0;
+	for (PlayerClient pClient : tickClients) {
+	    waiting += pClient.getQueueDepth();
+	    deepest = Math.max(deepest, pClient.getMaxQueueDepth());
+	    dropped += pClient.getDroppedMessages();
+	    replaced += pClient.getReplacedMessages();
+	}
+	System.out.println("send queues " + waiting + " waiting, deepest "
+		+ deepest + ", " + replaced + " replaced, " + dropped
+		+ " dropped, " + uploads.getWaiting() + " uploads waiting");
+    }
+
     public synchronized void addClient(
 	    BlinkendroidServerProtocol blinkendroidProtocol) {
 	if (!running) {
@@ -29,52 +129,22 @@ public class PlayerManager {
 	}
 	if (startTime == 0)
 	    startTime = System.currentTimeMillis();
+	blinkendroidProtocol.setUploadScheduler(uploads);
 	PlayerClient pClient = new PlayerClient(this, blinkendroidProtocol,
-		startTime);
-
-	// finde freien Platz in der Matrix
-	boolean found = false;
-	for (int i = 0; i < maxY; i++) {
-	    for (int j = 0; j < maxY; j++) {
-		// wenn freier platz dann nehmen
-		if (clients[i][j] == null) {
-		    pClient.y = i;
-		    pClient.x = j;
-		    found = true;
-		    break;
-		}
-		if (found)
-		    break;
-	    }
-	}
-	// wenn nicht gefunden dann erweitern, erst dann y
-	if (!found) {
-	    // wenn maxX>maxY -> neuen client an maxY+1
-	    if (maxX > maxY) {
-		pClient.y = maxY;
-		pClient.x = 0;
-		maxY++;
-	    } else {
-		// else -> neuen client an maxX+1
-		pClient.y = 0;
-		pClient.x = maxX;
-		maxX++;
-	    }
-	}
+		startTime, sender);
+
+	final boolean grown = grid.add(pClient);
 	System.out
 		.println("added Client at pos " + pClient.x + ":" + pClient.y);
-	clients[pClient.y][pClient.x] = pClient;
 
 	pClient.play(filename);
 	arrow(pClient);
-	if (!found)
-	    clip(true);
-	else {
-	    clip(false);
-	    pClient.clip();
-	}
-	// server starts thread to send globaltime
-	blinkendroidProtocol.startTimerThread();
+	// the new player is clipped at once, the others with the next layout
+	place(pClient, grid.getColumns(), grid.getRows());
+	pClient.clip();
+	if (grown)
+	    requestLayout();
+	tickClients.add(pClient);
     }
 
     private void arrow(final PlayerClient pClient) {
@@ -94,46 +164,82 @@ public class PlayerManager {
 	final int color = ARROW_COLORS[arrowColorIndex.getAndIncrement()
 		% ARROW_COLORS.length];
 
-	if (pClient.y + dy >= 0 && pClient.x + dx >= 0
-		&& null != clients[pClient.y + dy][pClient.x + dx]) {
-	    clients[pClient.y + dy][pClient.x + dx].arrow(deg, color);
+	final PlayerClient neighbour = grid.get(pClient.x + dx, pClient.y + dy);
+	if (null != neighbour) {
+	    neighbour.arrow(deg, color);
 	    final int inverseDeg = (deg + 180) % 360;
-	    clients[pClient.y][pClient.x].arrow(inverseDeg, color);
+	    pClient.arrow(inverseDeg, color);
 	}
     }
 
-    private void clip(boolean clipAll) {
-	// clipping für alle berechnen
-	// Log.i(Constants.LOG_TAG, "clip maxX "+i+":"+j);
-	float startY = 0;
-	for (int i = 0; i < maxY; i++) {
-	    float startX = 0;
-	    for (int j = 0; j < maxX; j++) {
-		if (clients[i][j] != null) {
-		    clients[i][j].startX = startX;
-		    clients[i][j].startY = startY;
-		    clients[i][j].endX = startX + (float) (1.0 / maxX);
-		    clients[i][j].endY = startY + (float) (1.0 / maxY);
-		    if (clipAll)
-			clients[i][j].clip();
-		}
-		startX = startX + (float) (1.0 / maxX);
+    /**
+     * Schedules a new layout, unless one is scheduled already. All joins and
+     * leaves until it runs are laid out together.
+     */
+    private void requestLayout() {
+	if (layoutPending)
+	    return;
+	layoutPending = true;
+	globalTimer.scheduleOnce(new Runnable() {
+	    public void run() {
+		layout();
+	    }
+	}, Constants.SERVER_LAYOUT_DELAY);
+    }
+
+    /**
+     * Clips the players to the current grid. Only players whose part of the
+     * wall changed are told.
+     */
+    private synchronized void layout() {
+	layoutPending = false;
+	if (!running)
+	    return;
+	layoutEpoch++;
+	final int columns = grid.getColumns();
+	final int rows = grid.getRows();
+	final List<PlayerClient> players = grid.getPlayers();
+	int changed = 0;
+	for (PlayerClient pClient : players) {
+	    if (place(pClient, columns, rows)) {
+		pClient.clip();
+		changed++;
 	    }
-	    startY = startY + (float) (1.0 / maxY);
 	}
+	System.out.println("layout " + layoutEpoch + " " + columns + "x" + rows
+		+ " clipped " + changed + " of " + players.size());
+    }
+
+    /**
+     * @return false if the player's part of the wall is unchanged
+     */
+    private static boolean place(PlayerClient pClient, int columns, int rows) {
+	final float startX = (float) pClient.x / columns;
+	final float startY = (float) pClient.y / rows;
+	final float endX = (float) (pClient.x + 1) / columns;
+	final float endY = (float) (pClient.y + 1) / rows;
+	if (startX == pClient.startX && startY == pClient.startY
+		&& endX == pClient.endX && endY == pClient.endY)
+	    return false;
+	pClient.startX = startX;
+	pClient.startY = startY;
+	pClient.endX = endX;
+	pClient.endY = endY;
+	return true;
     }
 
     public synchronized void shutdown() {
 	running = false;
+	tickClients.clear();
 	System.out.println("PlayerManager.shutdown() start");
-	for (int i = 0; i < maxY; i++) {
-	    for (int j = 0; j < maxX; j++) {
-		if (null != clients[i][j]) {
-		    System.out.println("shutdown PlayerClient " + j + ":" + i);
-		    clients[i][j].shutdown();
-		}
-	    }
+	for (PlayerClient pClient : grid.getPlayers()) {
+	    System.out.println("shutdown PlayerClient " + pClient.x + ":"
+		    + pClient.y);
+	    pClient.shutdown();
 	}
+	// the shutdown messages queued last are still sent
+	sender.shutdown();
+	uploads.shutdown();
 	System.out.println("PlayerManager.shutdown() end!!!");
 
     }
@@ -146,44 +252,64 @@ public class PlayerManager {
 
 	System.out.println("removeClient " + playerClient.x + ":"
 		+ playerClient.y);
-	clients[playerClient.y][playerClient.x] = null;
+	grid.remove(playerClient);
+	tickClients.remove(playerClient);
+	uploads.cancel(playerClient.blinkendroidProtocol);
+	requestLayout();
+    }
 
-	boolean newMaxX = true;
-	for (int i = 0; i < maxY; i++) {
-	    if (clients[i][maxX - 1] != null) {
-		newMaxX = false;
-		break;
-	    }
-	}
-	if (newMaxX && maxX > 1) {
-	    maxX--;
-	    System.out.println("newMaxX " + maxX);
-	}
+    public MovieCache getMovieCache() {
+	return movieCache;
+    }
 
-	boolean newMaxY = true;
-	for (int i = 0; i < maxX; i++) {
-	    if (clients[maxY - 1][i] != null) {
-		newMaxY = false;
-		break;
-	    }
-	}
-	if (newMaxY && maxY > 1) {
-	    maxY--;
-	    System.out.println("newMaxY " + maxY);
-	}
-	clip(true);
+    public TileCache getTileCache() {
+	return tileCache;
+    }
+
+    public AdmissionScheduler getUploads() {
+	return uploads;
+    }
+
+    /**
+     * Callers hold the lock.
+     */
+    String getFilename() {
+	return filename;
+    }
+
+    int getColumns() {
+	return grid.getColumns();
+    }
+
+    int getRows() {
+	return grid.getRows();
+    }
+
+    /**
+     * Moves the whole wall to another position in the current movie. All
+     * players get the same new start time, so they stay in sync.
+     * 
+     * @param position
+     *            milliseconds into the movie
+     */
+    public synchronized void seek(long position) {
+	startTime = System.currentTimeMillis() - position;
+	System.out.println("seek to " + position);
+	for (PlayerClient pClient : grid.getPlayers())
+	    pClient.seek(startTime);
     }
 
     public void switchMovie(BLMHeader blmHeader) {
-	this.filename = blmHeader.filename;
+	final String filename = blmHeader.filename;
 	System.out.println("switch to movie " + blmHeader.title);
-	for (int i = 0; i < maxY; i++) {
-	    for (int j = 0; j < maxX; j++) {
-		if (null != clients[i][j]) {
-		    System.out.println("play PlayerClient " + j + ":" + i + " "
-			    + filename);
-		    clients[i][j].play(filename);
-		}
+	// read the movie once for all clients, before taking the lock
+	movieCache.get(filename);
+	synchronized (this) {
+	    this.filename = filename;
+	    for (PlayerClient pClient : grid.getPlayers()) {
+		System.out.println("play PlayerClient " + pClient.x + ":"
+			+ pClient.y + " " + filename);
+		pClient.play(filename);
 	    }
 	}
     }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cbase.blinkendroid.server;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Messages waiting to be sent to one player. They are sent one after the
+ * other on a thread of the executor, so whoever queues them never waits for
+ * the network.
+ * <p>
+ * Only the newest play, clip and seek is of any use, so a new one replaces
+ * one still waiting. Arrows are the only messages that pile up; when the
+ * queue is full the oldest arrow is dropped. After a shutdown nothing else is
+ * queued.
+ */
+class SendQueue implements Runnable {
+
+    static final int PLAY = 1;
+    static final int CLIP = 2;
+    static final int SEEK = 3;
+    static final int ARROW = 4;
+    static final int SHUTDOWN = 5;
+
+    /**
+     * A message in the queue, sent by {@link #send()}.
+     */
+    abstract static class Message {
+
+	final int kind;
+
+	Message(int kind) {
+	    this.kind = kind;
+	}
+
+	abstract void send();
+    }
+
+    private final Executor executor;
+    private final int capacity;
+    private final LinkedList<Message> messages = new LinkedList<Message>();
+    private boolean draining = false;
+    private boolean closed = false;
+    private int dropped = 0, replaced = 0, maxDepth = 0;
+
+    SendQueue(Executor executor, int capacity) {
+	this.executor = executor;
+	this.capacity = capacity;
+    }
+
+    /**
+     * Queues a message and starts sending if nothing is being sent.
+     */
+    void offer(Message message) {
+	synchronized (this) {
+	    if (closed) {
+		dropped++;
+		return;
+	    }
+	    if (message.kind == SHUTDOWN) {
+		dropped += messages.size();
+		messages.clear();
+		closed = true;
+	    } else if (message.kind != ARROW) {
+		if (remove(message.kind))
+		    replaced++;
+	    }
+	    if (messages.size() >= capacity) {
+		// only arrows pile up, the others replaced their predecessor
+		if (remove(ARROW))
+		    dropped++;
+	    }
+	    messages.add(message);
+	    maxDepth = Math.max(maxDepth, messages.size());
+	    if (draining)
+		return;
+	    draining = true;
+	}
+	try {
+	    executor.execute(this);
+	} catch (RejectedExecutionException e) {
+	    System.out.println("SendQueue rejected, server shut down");
+	    synchronized (this) {
+		dropped += messages.size();
+		messages.clear();
+		draining = false;
+	    }
+	}
+    }
+
+    /**
+     * Sends until the queue is empty.
+     */
+    public void run() {
+	while (true) {
+	    final Message message;
+	    synchronized (this) {
+		if (messages.isEmpty()) {
+		    draining = false;
+		    return;
+		}
+		message = messages.removeFirst();
+	    }
+	    try {
+		message.send();
+	    } catch (RuntimeException e) {
+		e.printStackTrace();
+		System.out.println("SendQueue message failed");
+	    }
+	}
+    }
+
+    /**
+     * Removes the oldest waiting message of that kind.
+     */
+    private boolean remove(int kind) {
+	for (Iterator<Message> i = messages.iterator(); i.hasNext();) {
+	    if (i.next().kind == kind) {
+		i.remove();
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * @return messages waiting, not counting the one being sent
+     */
+    synchronized int getDepth() {
+	return messages.size();
+    }
+
+    /**
+     * @return the most messages that have been waiting at once
+     */
+    synchronized int getMaxDepth() {
+	return maxDepth;
+    }
+
+    /**
+     * @return messages dropped because the queue was full or closed
+     */
+    synchronized int getDropped() {
+	return dropped;
+    }
+
+    /**
+     * @return messages replaced by a newer one of the same kind
+     */
+    synchronized int getReplaced() {
+	return replaced;
+    }
+}
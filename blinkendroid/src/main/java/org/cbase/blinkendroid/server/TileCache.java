@@ -0,0 +1,217 @@
+/*
+ * Copyright 2010 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cbase.blinkendroid.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cbase.blinkendroid.Constants;
+import org.cbase.blinkendroid.network.FrameChunks;
+import org.cbase.blinkendroid.network.MovieHash;
+import org.cbase.blinkendroid.player.bml.BBMZParser;
+import org.cbase.blinkendroid.player.bml.BLM;
+
+/**
+ * Cuts a movie into the tiles of the wall, so every player gets only the
+ * pixels it shows. Tiles are kept by movie, grid size and grid position; a
+ * player whose place in the grid did not change gets its tile from here. A
+ * movie played as a whole is cut into chunks of frames instead.
+ */
+public class TileCache {
+
+    public static final long DEFAULT_BUDGET = 8 * 1024 * 1024;
+
+    private final MovieCache movieCache;
+    private final long budget;
+    private final LinkedHashMap<String, Tile> tiles = new LinkedHashMap<String, Tile>(
+	    16, 0.75f, true);
+    private long size = 0;
+    // the wall shows one movie at a time, so only the last one is kept, by
+    // the hash of its file so a replaced file is read again
+    private String movieKey;
+    private BLM movie;
+    private String chunksKey;
+    private FrameChunks chunks;
+
+    public TileCache(MovieCache movieCache, long budget) {
+	this.movieCache = movieCache;
+	this.budget = budget;
+    }
+
+    /**
+     * @return the tile at column <code>col</code> and row <code>row</code>
+     *         of a <code>cols</code> by <code>rows</code> grid, or null if
+     *         the movie can not be read or has fewer pixels than the grid
+     */
+    public synchronized Tile get(String filename, int cols, int rows,
+	    int col, int row) {
+	final byte[] movieHash = movieCache.getHash(filename);
+	if (null == movieHash)
+	    return null;
+	final String key = MovieHash.toHex(movieHash) + "/" + cols + "x"
+		+ rows + "/" + col + "," + row;
+	Tile tile = tiles.get(key);
+	if (null != tile)
+	    return tile;
+
+	final BLM blm = parse(filename);
+	if (null == blm)
+	    return null;
+	// integer bounds, so neighbouring tiles neither overlap nor leave gaps
+	final int x0 = blm.header.width * col / cols;
+	final int x1 = blm.header.width * (col + 1) / cols;
+	final int y0 = blm.header.height * row / rows;
+	final int y1 = blm.header.height * (row + 1) / rows;
+	if (x1 <= x0 || y1 <= y0)
+	    return null;
+	try {
+	    final BLM cropped = blm.crop(x0, y0, x1, y1);
+	    final byte[] content = BBMZParser.toBBMZ(cropped);
+	    if (content.length >= Constants.SERVER_PROGRESSIVE_THRESHOLD)
+		// a large tile goes in chunks, so the player starts early
+		tile = new Tile(null, MovieHash.digest(content), FrameChunks
+			.build(cropped));
+	    else
+		tile = new Tile(content, MovieHash.digest(content), null);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("TileCache could not build tile " + key);
+	    return null;
+	}
+	System.out.println("TileCache built tile " + key + " bytes "
+		+ tile.getSize());
+	tiles.put(key, tile);
+	size += tile.getSize();
+	evict();
+	return tile;
+    }
+
+    /**
+     * @return the movie in chunks of frames, or null if it can not be read
+     */
+    public synchronized FrameChunks getFrameChunks(String filename) {
+	final String key = key(filename);
+	if (null == key)
+	    return null;
+	if (key.equals(chunksKey))
+	    return chunks;
+	final BLM blm = parse(filename);
+	if (null == blm)
+	    return null;
+	try {
+	    chunks = FrameChunks.build(blm);
+	    chunksKey = key;
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("TileCache could not cut frames of " + filename);
+	    return null;
+	}
+	System.out.println("TileCache cut frames of " + filename + " chunks "
+		+ chunks.getChunkCount() + " bytes " + chunks.getSize());
+	return chunks;
+    }
+
+    public synchronized void clear() {
+	tiles.clear();
+	size = 0;
+	movieKey = null;
+	movie = null;
+	chunksKey = null;
+	chunks = null;
+    }
+
+    /**
+     * @return the hash of the file's current content, or null if it can not
+     *         be read
+     */
+    private String key(String filename) {
+	final byte[] hash = movieCache.getHash(filename);
+	return null == hash ? null : MovieHash.toHex(hash);
+    }
+
+    private BLM parse(String filename) {
+	final String key = key(filename);
+	if (null == key)
+	    return null;
+	if (key.equals(movieKey))
+	    return movie;
+	movie = null;
+	movieKey = null;
+	try {
+	    final ByteBuffer cached = movieCache.get(filename);
+	    final InputStream in;
+	    final long length;
+	    if (null != cached) {
+		final byte[] content = new byte[cached.remaining()];
+		cached.get(content);
+		in = new ByteArrayInputStream(content);
+		length = content.length;
+	    } else {
+		final FileInputStream file = new FileInputStream(filename);
+		in = new BufferedInputStream(file);
+		length = file.getChannel().size();
+	    }
+	    try {
+		movie = new BBMZParser().parseBBMZ(in, length);
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    System.out.println("TileCache could not read " + filename);
+	}
+	if (null != movie)
+	    movieKey = key;
+	return movie;
+    }
+
+    private void evict() {
+	final Iterator<Map.Entry<String, Tile>> i = tiles.entrySet().iterator();
+	// the tile just added is the most recently used one and stays
+	while (size > budget && tiles.size() > 1 && i.hasNext()) {
+	    size -= i.next().getValue().getSize();
+	    i.remove();
+	}
+    }
+
+    public static class Tile {
+
+	/** the tile as .bbmz, null if it is sent in chunks of frames */
+	public final byte[] content;
+	public final byte[] hash;
+	/** the tile in chunks of frames, null if it is sent as .bbmz */
+	public final FrameChunks frames;
+
+	Tile(byte[] content, byte[] hash, FrameChunks frames) {
+	    this.content = content;
+	    this.hash = hash;
+	    this.frames = frames;
+	}
+
+	long getSize() {
+	    return null != content ? content.length : frames.getSize();
+	}
+    }
+}